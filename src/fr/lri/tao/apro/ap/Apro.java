@@ -1,17 +1,19 @@
 package fr.lri.tao.apro.ap;
 
 
-import cern.colt.list.DoubleArrayList;
-import cern.colt.list.IntArrayList;
+import cern.colt.function.IntIntDoubleFunction;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import cern.colt.matrix.impl.SparseDoubleMatrix2D;
 import fr.lri.tao.apro.data.DataProvider;
 import fr.lri.tao.apro.util.Logger;
 import fr.lri.tao.numa.NUMA;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /* This was parallelnuma2 in the previous version 
    Does not create Workers every time, instead reuses them through a queue
@@ -22,24 +24,118 @@ import java.util.List;
  */
 public class Apro extends AbstractApro {
 
+  /** Storage precision of the similarities and messages */
+  public static enum Precision {
+    DOUBLE,
+    /** Single precision storage, with the sums still accumulated in double */
+    FLOAT
+  }
+  
+  /** How the nodes are split among the groups */
+  public static enum Partitioning {
+    /** Same number of rows in each group */
+    ROWS,
+    /** Same number of stored elements in each group, counting its rows and its owned columns */
+    NONZEROS
+  }
+  
+  /** Problems with fewer nodes run inline on the calling thread by default, where the synchronisation of the threads would cost more than it saves */
+  public static final int DEFAULT_INLINE_THRESHOLD = 256;
+  
   List<Group> groups = new ArrayList<Group>();
+  /** Groups of the last layout built, read by snapshotExemplars() during the runs. Replaced only once the next layout
+   *  is built, so that the snapshots read the previous one in the meantime */
+  private volatile List<Group> layoutGroups;
+  /** Load of the sparse matrix shared by the workers while the layout is built, null otherwise */
+  private SparseGroup.Loader loader;
   private double damp = 0.5d;
+  /** Damping of the current iteration, the damping set unless the adaptive damping changed it */
+  private volatile double currentDamping = 0.5d;
+  /** Highest damping of the adaptive damping, 0 for a fixed damping */
+  private double maxDamping = 0;
+  /** Adaptive damping of the current run, null for a fixed damping */
+  private DampingController dampingController;
   private int n;
 
   private DataProvider provider;
   private DoubleMatrix2D s;
-  double[][] r;
+  /** Column sums of positive responsibilities, reduced by the column owners */
   double[] sumr;
   
-  private final int groupCount;
+  /** Dense diagonal of the responsibilities, r(k, k) */
+  double[] rdiag;
+  
+  
+  private final int threadCount;
+  private int inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+  /** Whether the current layout runs on the calling thread alone, as a single group */
+  private boolean inline = false;
+  /** Number of groups per thread, more than one to distribute the groups dynamically */
+  private int chunking = 1;
+  private int groupCount;
   private Long runTime = null;
+  private Long initTime = null;
+  
+  private Precision precision = Precision.DOUBLE;
+  private Partitioning partitioning = Partitioning.ROWS;
+  /** Group gid holds the nodes [bounds[gid], bounds[gid+1]) */
+  private int[] bounds;
+  private double imbalance = 1d;
+  private int convits = 0;
+  private int iterations = 0;
+  private int maxIterations = 0;
+  /** Number of consecutive iterations without a change of the exemplars */
+  private int stable = 0;
+  private boolean converged = false;
+  /** End of the time budget of the current run, in System.nanoTime(), Long.MAX_VALUE without a budget */
+  private long deadline = Long.MAX_VALUE;
+  private boolean timedOut = false;
+  
+  private IterationListener listener;
+  private int listenerStride = 1;
+  private RuntimeException listenerError;
+  private CancellationToken token;
+  /** Thread running the current iterations, whose interrupt cancels them */
+  private Thread caller;
+  private volatile boolean cancelled = false;
+  private boolean asynchronous = false;
+  private boolean deterministic = false;
+  /** Change under which the messages of a row or a column are considered settled, 0 to update everything */
+  private double selectiveEpsilon = 0;
+  /** Every refreshInterval iterations, all the rows and columns are updated */
+  private int refreshInterval = 10;
+  private double updatedFraction = 1d;
+  /** Configurations run side by side in lockstep, null for a single run with the settings of this instance */
+  private List<Configuration> configurations;
+  private boolean pruning = false;
+  /** Whether the current layout is pruned */
+  private boolean pruned = false;
+  /** Lower bounds of the availabilities of each column, while the layout is pruned */
+  private double[] pruneBounds;
+  private final AtomicLong prunedElements = new AtomicLong();
   
   private final boolean useNuma;
   private int numaStartNode = 0;
   private Integer numaCoresPerNode = null;
   private Integer numaNumNodes = null;
   
+  /** Executor of the tasks on the groups, between start() and stop() */
+  private PhaseExecutor executor;
+  private ComputePool pool = ComputePool.getShared();
+  /** Pending updates of an engine, applied by the workers before the next iterations */
+  private DoubleMatrix2D updateS;
+  private double[] updatePreferences;
+  private boolean updateReset;
+  private final AtomicLong updatedNonZeros = new AtomicLong();
+  private final AtomicInteger missingDiagonals = new AtomicInteger();
+  /** Preferences set by the updates of an engine in place of the diagonal of s, which is left untouched; null if none */
+  private double[] appliedPreferences;
+  /** Copy of s with the applied preferences, built by getS() */
+  private DoubleMatrix2D preferredS;
+  
   private boolean debug = true;
+  private boolean dense = false;
+  private int[] exemplars;
   
   
   
@@ -57,8 +153,13 @@ public class Apro extends AbstractApro {
     
     
   public Apro(DataProvider provider, int groupCount, boolean useNuma, Integer numaNumNodes, Integer numaCoresPerNode, Integer numaStartNode) {         
+    this(provider, groupCount, useNuma, numaNumNodes, numaCoresPerNode, numaStartNode, true);
+  }
+  
+  /** @param logNuma false to leave out the NUMA settings from the log, already reported for the instances built before */
+  Apro(DataProvider provider, int groupCount, boolean useNuma, Integer numaNumNodes, Integer numaCoresPerNode, Integer numaStartNode, boolean logNuma) {         
     if (useNuma && !NUMA.isAvailable()) {      
-      Logger.warn("[NUMA] NUMA library not available. Switching off.");
+      if (logNuma) Logger.warn("[NUMA] NUMA library not available. Switching off.");
       this.useNuma = false;
     }
     else {
@@ -69,80 +170,184 @@ public class Apro extends AbstractApro {
       this.setNumaCoresPerNode(numaCoresPerNode);
       this.setNumaNumNodes(numaNumNodes);
       this.setNumaStartNode(numaStartNode);
-      Logger.info("[NUMA] Number of nodes: %d, cores per node: %d, start node: %d", this.numaNumNodes, this.numaCoresPerNode, this.numaStartNode);
+      if (logNuma) Logger.info("[NUMA] Number of nodes: %d, cores per node: %d, start node: %d", this.numaNumNodes, this.numaCoresPerNode, this.numaStartNode);
     }
-    else {
+    else if (logNuma) {
       Logger.warn("[NUMA] NUMA is off");
     }
     
     this.provider = provider;
     n = provider.size();
-    this.groupCount = groupCount;
     if (groupCount > n) {
       Logger.warn("Number of required threads is greater than the number of nodes. Setting groupCount to " + n);
       groupCount = n;
     }
+    this.threadCount = groupCount;
+    this.groupCount = groupCount;
+    this.bounds = splitRows();
   }
     
     
+  /** Creates the groups. The arrays are allocated and filled later by the workers, see layout() */
   private void init() {
-    long startInit = System.currentTimeMillis();
-    
+    groups = new ArrayList<Group>();
     s = provider.getMatrix();   
-    r = new double[n][n];
+    appliedPreferences = null;
+    preferredS = null;
     sumr = new double[n];
-        
-    int minSize = Integer.MAX_VALUE;
-    int maxSize = Integer.MIN_VALUE;
-    
+    rdiag = new double[n];
+    exemplars = null;
+    inline = n < inlineThreshold;
+    pruned = pruning && configurations == null;
+    pruneBounds = pruned ? new double[n] : null;
+    prunedElements.set(0);
+    groupCount = inline ? 1 : (int) Math.min(n, (long) threadCount * chunking);
+    dense = isDense(s);
+    if (partitioning == Partitioning.NONZEROS && !dense) bounds = splitNonZeros(s);
+    else bounds = splitRows();
     
     for (int gid=0; gid<groupCount; gid++) {
-      if (useNuma) NUMA.allocOnNode(this.getNumaNode(gid));
-      Group group = new Group(this, gid);
-      groups.add(group);      
-      minSize = Math.min(minSize, group.size);
-      maxSize = Math.max(maxSize, group.size);
+      if (useNuma && !inline) NUMA.allocOnNode(this.getNumaNode(gid));
+      groups.add(newGroup(gid));
     }
-    if (useNuma) NUMA.localAlloc();
-    
+    if (useNuma && !inline) NUMA.localAlloc();
+  }
+  
+  /** Each worker loads the rows of the groups in its home range in parallel, on its own node, 
+   *  then builds their column layout once all the rows are loaded */
+  private boolean layout(PhaseExecutor executor) {
+    loader = !dense && s instanceof SparseDoubleMatrix2D ? new SparseGroup.Loader((SparseDoubleMatrix2D) s, groups) : null;
+    boolean done = executor.execute(PhaseExecutor.Task.LAYOUT);
+    loader = null;
+    if (!done) return false;
     
-    // populating groups
-    IntArrayList is = new IntArrayList();
-    IntArrayList ks = new IntArrayList();
-    DoubleArrayList vs = new DoubleArrayList();            
-    getS().getNonZeros(is, ks, vs);
+    if (dense) DenseGroup.link(groups);
+    else if (configurations != null) LockstepGroup.link(groups, n);
+    else if (precision == Precision.FLOAT) FloatGroup.link(groups, n);
+    else DoubleGroup.link(groups, n);
     
-    for (int j=0; j<is.size(); j++) {
-      int i = is.get(j);
-      Group group = this.getGroup(i);
-      group.lengths[i-group.startIndex]++;
-    }    
-
+    long total = 0;
+    long max = 0;
     for (Group group: groups) {
-      if (useNuma) NUMA.allocOnNode(group.getNumaNode());
-      for (int i=0; i<group.size; i++) {
-        int len = group.lengths[i];
-        group.indices[i] = new int[len];      
-        group.s[i] = new double[len];
-        //r1[i] = new double[len];
-        group.a[i] = new double[len];
+      long elements = group.elements();
+      total += elements;
+      max = Math.max(max, elements);
+    }
+    imbalance = total == 0 ? 1d : (double) max * groupCount / total;
+    return true;
+  }
+  
+  /** @return true if the rows of the layout being built are scattered from slices of a hash table, 
+   *  see count(), allocate() and scatter(), before load() */
+  boolean isScattered() {
+    return loader != null;
+  }
+  
+  /** Counts the elements of each row in one slice of the hash table of the matrix, called by the worker of the slice */
+  void count(int slice, int slices) {
+    loader.count(slice, slices);
+  }
+  
+  /** Allocates the rows of consecutive groups, called by their worker once all the slices are counted */
+  void allocate(List<Group> home) {
+    loader.allocate(home);
+  }
+  
+  /** Scatters the elements of one slice of the hash table into their rows, called by the worker of the slice 
+   *  once all the rows are allocated */
+  void scatter(int slice, int slices) {
+    loader.scatter(slice, slices);
+  }
+  
+  /** Loads the rows of consecutive groups, called by their worker, once they are scattered if they are */
+  void load(List<Group> home) {
+    if (dense) {
+      for (Group group: home) ((DenseGroup) group).load(s);
+    }
+    else {
+      if (loader != null) SparseGroup.sort(home);
+      else SparseGroup.load(s, home);
+      if (pruned) {
+        for (Group group: home) ((SparseGroup) group).bounds(pruneBounds);
       }
     }
-    if (useNuma) NUMA.localAlloc();
-    
-    for (int j=0; j<is.size(); j++) {
-      int i = is.get(j);
-      Group group = this.getGroup(i);
-      int k = ks.get(j);
-      double v = vs.get(j);
-      int next = group.t[i-group.startIndex];
-      group.indices[i-group.startIndex][next] = k;
-      group.s[i-group.startIndex][next] = v;
-      group.t[i-group.startIndex]++;        
+  }
+  
+  /** @return true if the layout being built is pruned, see setPruning() */
+  boolean isPruned() {
+    return pruned;
+  }
+  
+  /** Prunes the rows of consecutive groups, called by their worker once all the rows are loaded, before the column layout */
+  void prune(List<Group> home) {
+    for (Group group: home) prunedElements.addAndGet(((SparseGroup) group).prune(pruneBounds));
+  }
+  
+  /** Builds the column layout of consecutive groups, called by their worker once all the rows are loaded */
+  void transpose(List<Group> home) {
+    if (!dense) SparseGroup.transpose(groups, home);
+  }
+  
+  /** Equal split, the group sizes differ by at most one row */
+  private int[] splitRows() {
+    int[] split = new int[groupCount+1];
+    for (int gid=0; gid<=groupCount; gid++) {
+      split[gid] = (int) ((long) n * gid / groupCount);
     }
+    return split;
+  }
+  
+  /** Splits the nodes so that the groups hold about the same number of elements. A node weighs 
+   *  the number of non-zeros in its row plus those in its column, the work of its group in the two phases */
+  private int[] splitNonZeros(DoubleMatrix2D s) {
+    final int[] weights = new int[n];
+    s.forEachNonZero(new IntIntDoubleFunction() {
+      @Override
+      public double apply(int i, int k, double v) {
+        weights[i]++;
+        weights[k]++;
+        return v;
+      }
+    });
+    long total = 0;
+    for (int i=0; i<n; i++) total += weights[i];
     
-    long initTime = System.currentTimeMillis() - startInit;
-    Logger.info("[Init] %d groups created (%d - %d elements each). Init time %d ms", groupCount, minSize, maxSize, initTime);
+    int[] split = new int[groupCount+1];
+    split[groupCount] = n;
+    int i = 0;
+    long sum = 0;
+    for (int gid=1; gid<groupCount; gid++) {
+      long target = total * gid / groupCount;
+      int min = split[gid-1] + 1;         // at least one node per group
+      int max = n - (groupCount - gid);   // and one left for each of the following groups
+      while (i < max && (i < min || sum + weights[i] / 2 < target)) {
+        sum += weights[i++];
+      }
+      split[gid] = i;
+    }
+    return split;
+  }
+  
+  /** Dense input is run on flat arrays without index arrays, when the rows of the largest group fit into one array */
+  private boolean isDense(DoubleMatrix2D s) {
+    if (!(s instanceof DenseDoubleMatrix2D) || precision != Precision.DOUBLE || configurations != null || pruned) return false;
+    int[] split = splitRows();
+    long maxSize = 0;
+    for (int gid=0; gid<groupCount; gid++) {
+      maxSize = Math.max(maxSize, split[gid+1] - split[gid]);
+    }
+    if (maxSize * n > Integer.MAX_VALUE - 8) {
+      Logger.warn("[Init] Groups too large for dense arrays, using the sparse layout. Increase the number of groups");
+      return false;
+    }
+    return true;
+  }
+  
+  private Group newGroup(int gid) {
+    if (dense) return new DenseGroup(this, gid);
+    if (configurations != null) return new LockstepGroup(this, gid);
+    if (precision == Precision.FLOAT) return new FloatGroup(this, gid);
+    return new DoubleGroup(this, gid);
   }
   
   public void setDebug(boolean debug) {
@@ -154,12 +359,275 @@ public class Apro extends AbstractApro {
    */
   public void setDamping(double dampingFactor) {
     this.damp = dampingFactor;
+    this.currentDamping = dampingFactor;
   }
   
   public double getDamping() {
     return damp;
   }
   
+  /** @return Damping of the current iteration, or of the last one once the run is over. 
+   *  The damping set, unless the adaptive damping changed it */
+  public double getCurrentDamping() {
+    return currentDamping;
+  }
+  
+  /** Adapt the damping to the run: start from the damping set, raise it by steps when the exemplars oscillate, 
+   * and lower it again, down to the damping set, when they are stable. Datasets that settle with a low damping 
+   * then converge in fewer iterations, without oscillating on the others. Each run starts again from the damping set.
+   * Not supported for configurations in lockstep, which have their own damping
+   * @param maxDamping Highest damping, below 1, 0 for a fixed damping as by default
+   */
+  public void setAdaptiveDamping(double maxDamping) {
+    if (maxDamping < 0 || maxDamping >= 1) throw new IllegalArgumentException("Highest damping must be in [0, 1)");
+    this.maxDamping = maxDamping;
+  }
+  
+  /** @return Highest damping of the adaptive damping, 0 if the damping is fixed */
+  public double getMaxDamping() {
+    return maxDamping;
+  }
+  
+  /** @return Damping used by each iteration of the last run with adaptive damping, null with a fixed damping */
+  public double[] getDampingSchedule() {
+    return dampingController == null ? null : dampingController.getSchedule();
+  }
+  
+  /** Set the storage precision of the similarities and messages. Single precision halves the memory 
+   * and the bytes moved per iteration, at the cost of a small drift of the messages
+   * @param precision Precision, DOUBLE by default
+   */
+  public void setPrecision(Precision precision) {
+    this.precision = precision;
+  }
+  
+  public Precision getPrecision() {
+    return precision;
+  }
+  
+  /** Set the pool the worker threads are borrowed from, the process-wide shared pool by default. 
+   * The number of threads set for this instance is the most it uses, fewer when the pool is busy with other jobs
+   * @param pool Compute pool with its budget of cores
+   */
+  public void setComputePool(ComputePool pool) {
+    this.pool = pool;
+  }
+  
+  public ComputePool getComputePool() {
+    return pool;
+  }
+  
+  /** Set the size under which a problem runs inline on the calling thread, as a single group without worker threads.
+   * The thread count, the chunking and NUMA are then ignored, and the run does not count against the compute pool. 
+   * Small problems spend most of their time synchronising the threads otherwise
+   * @param inlineThreshold Number of nodes, DEFAULT_INLINE_THRESHOLD by default, 0 to always use the worker threads
+   */
+  public void setInlineThreshold(int inlineThreshold) {
+    this.inlineThreshold = inlineThreshold;
+  }
+  
+  public int getInlineThreshold() {
+    return inlineThreshold;
+  }
+  
+  /** @return true if the last run ran inline on the calling thread, see setInlineThreshold() */
+  public boolean isInline() {
+    return inline;
+  }
+  
+  /** Run the iterations without barriers. Each thread sweeps its own groups, responsibilities then availabilities, 
+   * as fast as it can, reading the messages of the other groups as they were last published, instead of waiting 
+   * for all the groups at the end of each phase. The run stops after the given iterations of the slowest groups, 
+   * or once the exemplar decisions of every group have been stable for the convergence iterations.
+   * The results are not reproducible from run to run, and may settle on other exemplars than a synchronous run.
+   * Runs inline on the calling thread are always synchronous
+   * @param asynchronous true for asynchronous (Gauss-Seidel) iterations, false by default
+   */
+  public void setAsynchronous(boolean asynchronous) {
+    this.asynchronous = asynchronous;
+  }
+  
+  public boolean isAsynchronous() {
+    return asynchronous;
+  }
+  
+  /** Guarantee bit-identical messages and exemplars for the same input and settings, whatever the number of threads. 
+   * Synchronous runs always are: each column sum is reduced by its owner in the fixed order of the rows, 
+   * and no result depends on which thread processes which group. This mode refuses what depends on the timing: 
+   * asynchronous iterations fall back to synchronous ones, and a time budget is refused, use an iteration count. 
+   * For reproducible noise, use DataProvider.addNoise(seed)
+   * @param deterministic true to refuse the timing-dependent features, false by default
+   */
+  public void setDeterministic(boolean deterministic) {
+    this.deterministic = deterministic;
+  }
+  
+  public boolean isDeterministic() {
+    return deterministic;
+  }
+  
+  /** @return true if the iterations of the current layout run without barriers */
+  private boolean isAsynchronousRun() {
+    return asynchronous && !inline && !deterministic;
+  }
+  
+  /** Skip the rows and the columns whose messages have settled. Each row (column) estimates the largest change of its messages 
+   * from the maxima (sums) it reads anyway, without a pass of its own, and skips its update when the estimate is under epsilon. 
+   * Every refresh iterations, all of them are updated, to catch the changes that stayed under epsilon. A skipped row still reads 
+   * its availabilities and similarities, and a skipped column its responsibilities, so the time saved is a fraction of the share 
+   * of the updates skipped: see getUpdatedFraction(). The messages drift from those of a full run, 
+   * so the exemplars are approximate and may differ. Ignored for dense input
+   * @param epsilon Change under which a message is considered settled, 0 to update everything as by default
+   * @param refresh Number of iterations between two full updates, at least 1
+   */
+  public void setSelectiveUpdates(double epsilon, int refresh) {
+    if (epsilon < 0) throw new IllegalArgumentException("Epsilon must not be negative");
+    if (refresh < 1) throw new IllegalArgumentException("Refresh interval must be at least 1");
+    this.selectiveEpsilon = epsilon;
+    this.refreshInterval = refresh;
+  }
+  
+  /** @return Change under which the messages are considered settled, 0 if the selective updates are off */
+  public double getSelectiveEpsilon() {
+    return selectiveEpsilon;
+  }
+  
+  public int getRefreshInterval() {
+    return refreshInterval;
+  }
+  
+  /** @return true if all the rows and columns are updated in the current iteration */
+  boolean isFullSweep() {
+    return selectiveEpsilon <= 0 || iterations % refreshInterval == 0;
+  }
+  
+  /** @return Fraction of the row and column updates done by the last run, 1 without the selective updates */
+  public double getUpdatedFraction() {
+    return updatedFraction;
+  }
+  
+  /** Set a listener called at the end of every stride iterations, by the worker finishing the iteration
+   * @param listener Listener of the progress, null to remove it
+   * @param stride Number of iterations between two calls, at least 1
+   */
+  public void setIterationListener(IterationListener listener, int stride) {
+    if (stride < 1) throw new IllegalArgumentException("Stride must be at least 1");
+    this.listener = listener;
+    this.listenerStride = stride;
+  }
+  
+  /** Set the token through which the runs can be cancelled from another thread. The workers check it between the groups, 
+   * so a cancelled run stops within one group of work per thread, leaving the messages of its last iteration partly updated.
+   * Interrupting the thread calling run() cancels the run as well, and its interrupt status is kept
+   * @param token Cancellation token, null for none
+   */
+  public void setCancellationToken(CancellationToken token) {
+    this.token = token;
+  }
+  
+  public CancellationToken getCancellationToken() {
+    return token;
+  }
+  
+  /** @return true if the last run was stopped by its token, by an interrupt or by a failing listener */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+  
+  /** Checked by the workers between the groups
+   * @return true once the current run should stop */
+  boolean cancelling() {
+    if (cancelled) return true;
+    if ((token != null && token.isCancelled()) || (caller != null && caller.isInterrupted())) cancelled = true;
+    return cancelled;
+  }
+  
+  /** Stops the current run, at the next check of the workers */
+  void cancel() {
+    cancelled = true;
+  }
+  
+  /** Remove from the layout the pairs (i, k) that can be shown never to become exemplar links, from bounds of the messages
+   * that hold over all the iterations (edge elimination). The removed pairs change none of the messages of the others,
+   * so the results stay the same while the rows shrink, most on dense inputs. The bounds are computed once,
+   * when the layout is built; an engine with a pruned layout does not accept new similarities or preferences.
+   * The sparse layout is used for any input. Not supported for configurations in lockstep. Applied at the next start
+   * @param pruning true to prune the layout, false by default
+   */
+  public void setPruning(boolean pruning) {
+    this.pruning = pruning;
+  }
+  
+  public boolean isPruning() {
+    return pruning;
+  }
+  
+  /** @return Number of elements removed from the current layout by the pruning */
+  public long getPrunedElements() {
+    return prunedElements.get();
+  }
+  
+  /** Run several configurations side by side, each one with its own messages, sharing the layout of the similarities.
+   * Each pass over the sparsity pattern serves all the configurations, which pays off when the iterations are bound
+   * by the memory traffic. Each configuration gives the same exemplars as a run of its own with the same settings.
+   * The sparse layout is used for any input, in double precision and without selective updates.
+   * The run goes on until all the configurations converge, and the changes and exemplars given to the iteration listener
+   * are summed over the configurations. getExemplars(), getA() and getR() give the results of the first configuration,
+   * see getExemplars(int) for the others. Applied at the next start
+   * @param configurations Configurations, null or empty for a single run with the settings of this instance
+   */
+  public void setConfigurations(List<Configuration> configurations) {
+    this.configurations = configurations == null || configurations.isEmpty() ? null : new ArrayList<Configuration>(configurations);
+  }
+  
+  /** @return Configurations run in lockstep, null if none */
+  public List<Configuration> getConfigurations() {
+    return configurations;
+  }
+  
+  /** Split the nodes into several groups per thread, instead of one. The groups are then claimed dynamically in each phase: 
+   * a thread processes the groups of its home range first, allocated on its own node, then takes over the remaining groups 
+   * of the other threads. This evens out the threads slowed down by the OS or by their SMT siblings
+   * @param chunking Number of groups per thread, 1 by default for a static assignment
+   */
+  public void setChunking(int chunking) {
+    if (chunking < 1) throw new IllegalArgumentException("Chunking must be at least 1");
+    this.chunking = chunking;
+  }
+  
+  public int getChunking() {
+    return chunking;
+  }
+  
+  /** Set how the nodes are split among the groups. Partitioning.NONZEROS balances the stored elements instead of the rows, 
+   * which matters for sparse graphs with a skewed degree distribution. Dense input is always split by rows
+   * @param partitioning Partitioning, ROWS by default
+   */
+  public void setPartitioning(Partitioning partitioning) {
+    this.partitioning = partitioning;
+  }
+  
+  public Partitioning getPartitioning() {
+    return partitioning;
+  }
+  
+  /** @return Imbalance of the last run's split: stored elements of the largest group over the average, 1 for a perfect balance */
+  public double getImbalance() {
+    return imbalance;
+  }
+  
+  /** Stop the run early, once the exemplar decisions (positive diagonal of A+R) have not changed 
+   * for the given number of iterations. Same as MATLAB's convits parameter
+   * @param convits Number of stable iterations needed to stop, 0 to always run all the iterations
+   */
+  public void setConvergenceIterations(int convits) {
+    this.convits = convits;
+  }
+  
+  public int getConvergenceIterations() {
+    return convits;
+  }
+  
   private void setNumaStartNode(Integer node) {
     if (node == null) this.numaStartNode = NUMA.getNode();
     else this.numaStartNode = node;
@@ -175,35 +643,27 @@ public class Apro extends AbstractApro {
     else this.numaNumNodes = nn;
   }
   
-  /** @return Node to run this group on */
+  /** @return Node to run this group on, the node of the thread whose home range holds it */
   Integer getNumaNode(int gid) {    
-    int node = gid / numaCoresPerNode;
+    int node = GroupQueue.thread(gid, groupCount, threadCount) / numaCoresPerNode;
     node = (node + numaStartNode) % numaNumNodes;
     return node;
   }
   
   
   int startIndex(int gid) {
-    return ((n / groupCount) * gid);
+    return bounds[gid];
   }
   
   
   /** Non-inclusive */
   int endIndex(int gid) {
-    int groupSize = n / groupCount;
-    int start = groupSize * gid;
-    if (groupCount == gid+1) {
-      return n;
-    }
-    if (start + groupSize > n) {
-      return n;
-    }
-    return start + groupSize;
+    return bounds[gid+1];
   }
   
   public final int getGroupId(int nodeId) {    
-    int size = n / groupCount;
-    int gid = nodeId / size;
+    int gid = Arrays.binarySearch(bounds, nodeId);
+    if (gid < 0) gid = -gid-2;
     if (gid >= groupCount) gid = groupCount-1;
     return gid;
   }
@@ -216,86 +676,277 @@ public class Apro extends AbstractApro {
   
   
   
-  synchronized void updateSums(Group group) {
-    for (int k=0; k<n; k++) {      
-      sumr[k] += group.sums[k];
+  /** The main method for running the Affinity Propagation. Each run reads the similarity matrix from the provider again
+   *  and builds a new layout, use AproEngine to keep the layout and the threads across runs
+   * @param iters Maximum number of iterations to run. Fewer are ran if convergence iterations are set and the exemplars settle */
+  public void run(int iters) {
+    this.run(iters, null);
+  }
+  
+  /** Runs the Affinity Propagation until the time budget runs out, or until the exemplars settle if convergence iterations are set.
+   *  The budget includes reading the matrix and building the layout, and at least one iteration is always run
+   * @param budget Time budget of the run */
+  public void run(Duration budget) {
+    this.run(Integer.MAX_VALUE, budget);
+  }
+  
+  /** Runs the Affinity Propagation for the given iterations at most, stopping earlier when the time budget runs out
+   * @param iters Maximum number of iterations to run
+   * @param budget Time budget of the run, including the layout, null for no limit */
+  public void run(int iters, Duration budget) {
+    long end = deadline(budget);
+    this.begin();
+    this.start();
+    try {
+      this.iterate(iters, end);
+    }
+    finally {
+      this.stop();
     }
+  }
+  
+  /** @return Time in System.nanoTime() when the budget started now runs out, Long.MAX_VALUE for no budget */
+  long deadline(Duration budget) {
+    if (budget == null) return Long.MAX_VALUE;
+    if (deterministic) throw new IllegalStateException("A time budget is not deterministic, set the number of iterations instead");
+    long now = System.nanoTime();
+    long nanos;
+    try {
+      nanos = Math.max(0, budget.toNanos());
+    }
+    catch (ArithmeticException e) {
+      return Long.MAX_VALUE;
+    }
+    return nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos;
+  }
+  
+  /** Clears the cancellation of the previous run. The interrupt of the calling thread cancels the next one */
+  void begin() {
+    cancelled = false;
+    listenerError = null;
+    caller = Thread.currentThread();
+  }
+  
+  /** Builds the groups and starts the worker threads, unless they are already running. 
+   *  Gives up without a layout if the run is cancelled while waiting for the cores */
+  void start() {
+    if (executor != null) return;
+    long startInit = System.currentTimeMillis();
+    this.init();
     
+    if (inline) {
+      executor = new PhaseExecutor(this, new GroupQueue(groups, 1, false), null, 1, false, false);
+    }
+    else {
+      GroupQueue queue = new GroupQueue(groups, threadCount, chunking > 1);
+      executor = new PhaseExecutor(this, queue, pool, threadCount, useNuma, chunking > 1);
+    }
+    if (!this.layout(executor)) {
+      Logger.info("[Init] Cancelled while waiting for cores");
+      executor = null;
+      groups = new ArrayList<Group>();
+      return;
+    }
+    layoutGroups = groups;
     
-//    System.out.println("Updating sum from "+group);
-//    
-//    for (int k=0; k<n; k++) {      
-//      System.out.println(String.format("oldSums[%d] = %f", k, group.oldSums[k]));
-//      sumrSmart[k] += group.sums[k];
-//
-//      double bef = sumr[k];
-//      sumr[k] = 0;
-//      for (int i=0; i<n; i++) {
-//        sumr[k] += Math.max(0,r[i][k]);
-//        System.out.print("+"+Math.max(0, r[i][k]));
-//      }
-//      
-//      //sumrSmart[k] = sumrSmart[k] - bef;
-//      
-//      System.out.println(String.format(": sumr[%d] before: %f; after: %f; diff: %f", k, bef, sumr[k], sumr[k] - bef));
-//      
-//      if (Math.abs(sumrSmart[k] - sumr[k]) > 0.01) System.out.println(String.format("ERROR for k = %d: %f, should be %f (diff %f)", k, sumrSmart[k], sumr[k], sumr[k] - sumrSmart[k]));
-//    }
-//    
+    int minSize = Integer.MAX_VALUE;
+    int maxSize = Integer.MIN_VALUE;
+    for (Group group: groups) {
+      minSize = Math.min(minSize, group.size);
+      maxSize = Math.max(maxSize, group.size);
+    }
+    this.initTime = System.currentTimeMillis() - startInit;
+    if (inline) Logger.info("[Init] 1 %s group created (%d elements) inline on the calling thread. Init time %d ms", dense ? "dense" : "sparse", maxSize, initTime);
+    else Logger.info("[Init] %d %s groups created (%d - %d elements each) for %d threads. Init time %d ms", groupCount, dense ? "dense" : "sparse", minSize, maxSize, threadCount, initTime);
+    Logger.info("[Init] Partitioning by %s, imbalance of the stored elements (max / mean) %.2f", partitioning, imbalance);
+    if (pruned) Logger.info("[Init] Pruned %d elements that cannot become exemplar links", prunedElements.get());
+    if (pruning && configurations != null) Logger.warn("[Init] Pruning is not supported for configurations in lockstep, which have their own preferences");
+    if (deterministic && asynchronous) Logger.warn("[Init] Asynchronous iterations are not deterministic, running synchronously");
+    if (dense && selectiveEpsilon > 0) Logger.warn("[Init] Selective updates are not supported for dense input, updating everything");
+    if (configurations != null) {
+      Logger.info("[Init] %d configurations in lockstep", configurations.size());
+      if (precision == Precision.FLOAT) Logger.warn("[Init] Configurations in lockstep are stored in double precision");
+      if (selectiveEpsilon > 0) Logger.warn("[Init] Selective updates are not supported for configurations in lockstep, updating everything");
+      if (maxDamping > 0) Logger.warn("[Init] Adaptive damping is not supported for configurations in lockstep, using their damping");
+    }
   }
-
   
-  /** The main method for running the Affinity Propagation
-   * @param iters Number of iterations to run */
-  public void run(int iters) {
-    this.init();
+  /** Applies the pending updates, then runs the iterations on the started workers, continuing from the current messages
+   * @param iters Maximum number of iterations
+   * @param deadline End of the time budget in System.nanoTime(), Long.MAX_VALUE for none. See begin() for the cancellation */
+  void iterate(int iters, long deadline) {
+    if (executor == null) {
+      // cancelled while waiting for the cores of the layout
+      caller = null;
+      iterations = 0;
+      return;
+    }
+    if (updateS != null || updatePreferences != null || updateReset) {
+      long startUpdate = System.currentTimeMillis();
+      updatedNonZeros.set(0);
+      missingDiagonals.set(0);
+      executor.execute(PhaseExecutor.Task.UPDATE);
+      if (updateS != null) {
+        s = updateS;
+        appliedPreferences = null;
+        long outside = dense ? 0 : s.cardinality() - updatedNonZeros.get();
+        if (outside > 0) Logger.warn("[Update] %d similarities outside of the sparsity pattern were ignored", outside);
+      }
+      if (missingDiagonals.get() > 0) Logger.warn("[Update] %d nodes have no diagonal element, their preferences were ignored", missingDiagonals.get());
+      if (updatePreferences != null) appliedPreferences = updatePreferences.clone();
+      preferredS = null;
+      Logger.info("[Update] %s%s%sin %d ms", updateS != null ? "similarities, " : "", updatePreferences != null ? "preferences, " : "", updateReset ? "reset, " : "", System.currentTimeMillis() - startUpdate);
+      updateS = null;
+      updatePreferences = null;
+      updateReset = false;
+    }
     
-    long startTime = System.currentTimeMillis();
-    List<GroupWorker> workers = new ArrayList<GroupWorker>();
+    iterations = 0;
+    maxIterations = iters;
+    converged = false;
+    timedOut = false;
+    this.deadline = deadline;
+    stable = 0;
+    exemplars = null;
+    currentDamping = damp;
+    dampingController = maxDamping > damp && configurations == null ? new DampingController(damp, maxDamping, n) : null;
     for (Group group: groups) {
-      GroupWorker worker = new GroupWorker(group, useNuma);
-      worker.start();
-      workers.add(worker);
+      group.stable = 0;
+      if (!dense) ((SparseGroup) group).updatedRows = ((SparseGroup) group).updatedColumns = 0;
     }
     
+    long startTime = System.currentTimeMillis();
     Logger.info("[Apro] Working...");    
-    for (int i=0; i<iters; i++) {
-      if (debug && (i + 1) % (iters / 10) == 0) System.out.print('.');
-      
-      // RESPONSIBILITIES
-      Arrays.fill(sumr, 0d);
-      for (GroupWorker worker: workers) {
-        worker.responsibilities();
-      }
-      for (GroupWorker worker: workers) {
-        worker.waitTask();
-      }
-      
-      // AVAILABILITIES
-      for (GroupWorker worker: workers) {
-        worker.availabilities();
-      }
-      for (GroupWorker worker: workers) {
-        worker.waitTask();
-      }
-      
-    }
+    if (iters > 0 && !cancelling()) executor.execute(isAsynchronousRun() ? PhaseExecutor.Task.ASYNC_ITERATIONS : PhaseExecutor.Task.ITERATIONS);
     if (debug) System.out.println();
     
-    for (GroupWorker worker: workers) {
-      worker.done();
-      try { worker.join(); }
-      catch (InterruptedException e) {}
-    }
+    this.runTime = System.currentTimeMillis() - startTime;
+    caller = null;
     
-    long endTime = System.currentTimeMillis();
-    this.runTime = endTime - startTime;
-    Logger.info("[Result] Groups: %d; Time: %d ms", groupCount, runTime);
+    updatedFraction = 1d;
+    if (selectiveEpsilon > 0 && !dense && iterations > 0) {
+      long updated = 0;
+      for (Group group: groups) updated += ((SparseGroup) group).updatedRows + ((SparseGroup) group).updatedColumns;
+      updatedFraction = (double) updated / (2L * n * iterations);
+      Logger.info("[Result] Selective updates: %.1f%% of the rows and columns updated", 100 * updatedFraction);
+    }
+    if (dampingController != null) Logger.info("[Result] Adaptive damping: raised %d times, lowered %d times, last %.2f", dampingController.getRaised(), dampingController.getLowered(), currentDamping);
+    if (converged) Logger.info("[Result] Converged after %d iterations", iterations);
+    if (timedOut) Logger.info("[Result] Time budget ran out after %d iterations", iterations);
+    if (cancelled) Logger.info("[Result] Cancelled after %d iterations", iterations);
+    Logger.info("[Result] Groups: %d; Iterations: %d; Init: %d ms; Time: %d ms", groupCount, iterations, initTime, runTime);
+    if (listenerError != null) throw listenerError;
+  }
+  
+  /** Drops the executor, the next start() builds the groups again. The groups are kept for reading the results */
+  void stop() {
+    executor = null;
+  }
+  
+  /** Similarities to copy into the layout before the next iterations, same sparsity pattern */
+  void setUpdateS(DoubleMatrix2D s) {
+    if (pruned && executor != null) throw new IllegalStateException("The layout is pruned for the current similarities, build the engine without pruning to change them");
+    if (s.rows() != n || s.columns() != n) throw new IllegalArgumentException("Similarity matrix must be " + n + "x" + n);
+    this.updateS = s;
+  }
+  
+  /** Preferences to set before the next iterations */
+  void setUpdatePreferences(double[] preferences) {
+    if (pruned && executor != null) throw new IllegalStateException("The layout is pruned for the current preferences, build the engine without pruning to change them");
+    if (preferences.length != n) throw new IllegalArgumentException("Preferences must be a vector of size " + n);
+    this.updatePreferences = preferences;
+  }
+  
+  /** Clear the messages before the next iterations */
+  void setUpdateReset() {
+    this.updateReset = true;
+  }
+  
+  /** Applies the pending updates to consecutive groups, called by their worker */
+  void update(List<Group> home) {
+    for (Group group: home) {
+      if (updateS != null) updatedNonZeros.addAndGet(group.update(updateS));
+      if (updatePreferences != null) missingDiagonals.addAndGet(group.updatePreferences(updatePreferences));
+      if (updateReset) group.resetMessages();
+    }
   }
   
   public Long getRunTime() {
     return runTime;
   }
+  
+  /** Called at the end of each iteration by the last worker to finish it, while the others wait at the barrier.
+   * In an asynchronous run, called once all the groups have done one more sweep, while the others go on
+   * @return true to run another iteration */
+  boolean iterated() {
+    iterations++;
+    if (debug && iterations % Math.max(1, maxIterations / 10) == 0) System.out.print('.');
+    if (cancelling()) return false;
+    
+    boolean notify = listener != null && iterations % listenerStride == 0;
+    if (convits > 0 || notify || dampingController != null) {
+      int changes = 0;
+      int exemplarCount = 0;
+      int minStable = Integer.MAX_VALUE;
+      for (Group group: groups) {
+        changes += group.changes;
+        exemplarCount += group.exemplarCount;
+        minStable = Math.min(minStable, group.stable);
+      }
+      if (notify) {
+        try {
+          listener.iterated(this, iterations, exemplarCount, changes);
+        }
+        catch (RuntimeException e) {
+          Logger.warn(e, "[Apro] Iteration listener failed, cancelling the run");
+          listenerError = e;
+          cancelled = true;
+        }
+        if (cancelling()) return false;
+      }
+      if (dampingController != null) currentDamping = dampingController.iterated(iterations, exemplarCount, changes, rdiag);
+      if (convits > 0) {
+        // the groups of an asynchronous run are still sweeping, each one counts its own stable sweeps
+        if (isAsynchronousRun()) stable = minStable;
+        else if (changes == 0) stable++;
+        else stable = 0;
+        if (stable >= convits && exemplarCount > 0) {
+          converged = true;
+          return false;
+        }
+      }
+    }
+    if (deadline != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+      timedOut = iterations < maxIterations;
+      return false;
+    }
+    return iterations < maxIterations;
+  }
+  
+  /** @return Maximum number of iterations of the current run */
+  int getMaxIterations() {
+    return maxIterations;
+  }
+  
+  /** @return Time in ms spent building the groups of the last run (loading the rows and the column layout), not included in the run time */
+  public Long getInitTime() {
+    return initTime;
+  }
+  
+  /** @return Number of iterations actually ran by the last run */
+  public int getIterations() {
+    return iterations;
+  }
+  
+  /** @return true if the last run stopped because the exemplars did not change for the convergence iterations */
+  public boolean isConverged() {
+    return converged;
+  }
+  
+  /** @return true if the last run stopped because its time budget ran out */
+  public boolean isTimedOut() {
+    return timedOut;
+  }
 
   @Override
   public int getN() {
@@ -304,12 +955,31 @@ public class Apro extends AbstractApro {
 
   @Override
   public DoubleMatrix2D getR() {
-    return new DenseDoubleMatrix2D(r);
+    SparseDoubleMatrix2D r = new SparseDoubleMatrix2D(n, n);
+    for (Group group: groups) {
+      for (int i=0; i<group.size; i++) {
+        int len = group.length(i);
+        for (int j=0; j<len; j++) {
+          r.setQuick(i+group.startIndex, group.column(i, j), group.getR(i, j));
+        }
+      }
+    }
+    return r;
   }
   
+  /** @return Similarity matrix of the layout. After preferences were set on an engine, a copy of the matrix given
+   *          with these preferences on the diagonal, the matrix given being left as is */
   @Override
-  public DoubleMatrix2D getS() {
-    return s;
+  public synchronized DoubleMatrix2D getS() {
+    if (appliedPreferences == null) return s;
+    if (preferredS == null) {
+      DoubleMatrix2D copy = s.copy();
+      for (int k=0; k<n; k++) {
+        if (dense || s.getQuick(k, k) != 0) copy.setQuick(k, k, appliedPreferences[k]);
+      }
+      preferredS = copy;
+    }
+    return preferredS;
   }
 
 
@@ -318,17 +988,76 @@ public class Apro extends AbstractApro {
     SparseDoubleMatrix2D a = new SparseDoubleMatrix2D(n, n);
     for (Group group: groups) {
       for (int i=0; i<group.size; i++) {
-        int len = group.lengths[i];
-        int k;
+        int len = group.length(i);
         for (int j=0; j<len; j++) {
-          k = group.indices[i][j];
-          a.setQuick(i+group.startIndex, k, group.a[i][j]);
+          a.setQuick(i+group.startIndex, group.column(i, j), group.getA(i, j));
         }
       }
     }
     return a;
   }
   
+  /** Sum of responsibilities and availabilities over the elements stored by the engine */
+  @Override
+  public synchronized DoubleMatrix2D getAR() {
+    DoubleMatrix2D ar;
+    if (dense) ar = new DenseDoubleMatrix2D(n, n);
+    else ar = new SparseDoubleMatrix2D(n, n);
+    for (Group group: groups) {
+      for (int i=0; i<group.size; i++) {
+        int len = group.length(i);
+        for (int j=0; j<len; j++) {
+          ar.setQuick(i+group.startIndex, group.column(i, j), group.getA(i, j) + group.getR(i, j));
+        }
+      }
+    }
+    return ar;
+  }
+  
+  /** The result of the clustering, computed from the messages of the groups 
+    * @return Array of indexes of exemplars.
+    * idx[j] == j indicates data point j is itself an exemplar. */
+  @Override
+  public synchronized int[] getExemplars() {
+    if (exemplars != null) return exemplars;
+    exemplars = new int[n];
+    for (Group group: groups) {
+      group.getExemplars(exemplars);
+    }
+    return exemplars;
+  }
+  
+  
+  /** The result of one of the configurations run in lockstep, see setConfigurations()
+   * @param configuration Index of the configuration
+   * @return Array of indexes of exemplars */
+  public synchronized int[] getExemplars(int configuration) {
+    if (configurations == null) {
+      if (configuration != 0) throw new IndexOutOfBoundsException("No configurations in lockstep, only configuration 0");
+      return getExemplars();
+    }
+    if (configuration < 0 || configuration >= configurations.size()) throw new IndexOutOfBoundsException("Configuration " + configuration + " of " + configurations.size());
+    int[] result = new int[n];
+    for (Group group: groups) {
+      ((LockstepGroup) group).getExemplars(configuration, result);
+    }
+    return result;
+  }
+  
+  /** The exemplars given by the current messages, argmax over k of a(i,k) + r(i,k) for each node, 
+   * read directly from the groups. Can be called from any thread while a run is in progress, 
+   * without stopping the workers: the messages are read as they are, some of them possibly one iteration ahead of the others
+   * @return Array of indexes of exemplars, null before the layout of the first run is built. While the layout of a later
+   *         run is being built, the exemplars of the previous layout */
+  public int[] snapshotExemplars() {
+    List<Group> current = layoutGroups;
+    if (current == null) return null;
+    int[] snapshot = new int[n];
+    for (Group group: current) {
+      group.getExemplars(snapshot);
+    }
+    return snapshot;
+  }
   
   private void identifyExemplars() {
     DoubleMatrix2D ar = this.getAR();
@@ -0,0 +1,199 @@
+package fr.lri.tao.apro.ap;
+
+import fr.lri.tao.apro.data.DataProvider;
+import fr.lri.tao.apro.util.Logger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Clusters many small problems, spreading whole problems across the cores instead of splitting each problem among threads.
+ *  Each problem runs inline on a single thread, see Apro.setInlineThreshold(), and the threads take the next problem
+ *  of the list as soon as they are done. The threads are borrowed from the compute pool, the calling thread being one of them.
+ *  When the share of the batch in the pool changes, the threads finish their current problem, the cores are given back
+ *  and reserved again, and the batch goes on. Build it with AproBuilder.buildBatch().
+ *  <p>
+ *  Cancelling the token of the builder, or interrupting the calling thread, stops the batch: the running problems 
+ *  that use the token stop at once, and the problems not started yet are not run. Their results hold a CancellationException */
+public class AproBatch {
+
+  private final AproBuilder builder;
+  private final int threads;
+  private final ComputePool pool;
+
+  /** Outcome of one problem of the batch */
+  public static class Result {
+    private final int index;
+    private final int n;
+    private final int[] exemplars;
+    private final int iterations;
+    private final boolean converged;
+    private final long time;
+    private final RuntimeException error;
+
+    Result(int index, int n, int[] exemplars, int iterations, boolean converged, long time, RuntimeException error) {
+      this.index = index;
+      this.n = n;
+      this.exemplars = exemplars;
+      this.iterations = iterations;
+      this.converged = converged;
+      this.time = time;
+      this.error = error;
+    }
+
+    /** @return Position of the problem in the list of providers */
+    public int getIndex() {
+      return index;
+    }
+
+    /** @return Number of nodes of the problem */
+    public int getN() {
+      return n;
+    }
+
+    /** @return Exemplar of each node, null if the problem failed */
+    public int[] getExemplars() {
+      return exemplars;
+    }
+
+    /** @return Number of iterations ran */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /** @return true if the problem stopped because the exemplars did not change for the convergence iterations */
+    public boolean isConverged() {
+      return converged;
+    }
+
+    /** @return Time spent on the problem in microseconds: reading the matrix, building the layout and iterating */
+    public long getTime() {
+      return time;
+    }
+
+    /** @return Exception thrown by the problem, null if it succeeded */
+    public RuntimeException getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      if (error != null) return String.format("Problem %d (%d nodes) failed: %s", index, n, error);
+      int k = 0;
+      for (int i=0; i<exemplars.length; i++) {
+        if (exemplars[i] == i) k++;
+      }
+      return String.format("Problem %d (%d nodes): %d exemplars, %d iterations, %d us", index, n, k, iterations, time);
+    }
+  }
+
+
+  /** @param builder Settings of the problems
+   *  @param threads Most problems to run in parallel
+   *  @param pool Pool to borrow the threads from */
+  AproBatch(AproBuilder builder, int threads, ComputePool pool) {
+    if (threads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+    this.builder = builder;
+    this.threads = threads;
+    this.pool = pool;
+  }
+
+  /** Clusters all the problems. A problem that throws does not stop the others, its exception is kept in its result.
+   * Returns once all the problems are done, or once the batch is cancelled
+   * @param providers Similarity matrices of the problems
+   * @param iters Maximum number of iterations of each problem
+   * @return Result of each problem, in the order of the providers */
+  public List<Result> run(final List<? extends DataProvider> providers, final int iters) {
+    final Result[] results = new Result[providers.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final int wanted = Math.max(1, Math.min(threads, providers.size()));
+    final CancellationToken token = builder.getCancellationToken();
+    final Thread caller = Thread.currentThread();
+    long start = System.currentTimeMillis();
+    int rounds = 0;
+
+    while (next.get() < providers.size() && !cancelled(token, caller)) {
+      final int granted = pool.acquire(wanted, true, token);
+      if (granted == 0) break;
+      rounds++;
+      try {
+        final AtomicBoolean rebalance = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(granted);
+        Runnable worker = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              while (!rebalance.get() && !cancelled(token, caller)) {
+                int index = next.getAndIncrement();
+                if (index >= providers.size()) break;
+                results[index] = solve(index, providers.get(index), iters);
+                if (pool.unbalanced(granted, wanted)) rebalance.set(true);
+              }
+            }
+            finally {
+              done.countDown();
+            }
+          }
+        };
+        for (int t=1; t<granted; t++) pool.execute(worker);
+        worker.run();
+        awaitUninterruptibly(done);
+      }
+      finally {
+        pool.release(granted);
+      }
+    }
+
+    int failed = 0;
+    for (int index=0; index<results.length; index++) {
+      if (results[index] == null) {
+        int n = providers.get(index).size();
+        results[index] = new Result(index, n, null, 0, false, 0, new CancellationException("Batch cancelled"));
+      }
+      if (results[index].getError() != null) failed++;
+    }
+    if (failed > 0) Logger.warn("[Batch] %d of %d problems failed", failed, providers.size());
+    Logger.info("[Batch] %d problems on up to %d threads (%d rounds) in %d ms", providers.size(), wanted, rounds, System.currentTimeMillis() - start);
+    return Arrays.asList(results);
+  }
+
+  /** Runs one problem on the current thread */
+  private Result solve(int index, DataProvider provider, int iters) {
+    long start = System.nanoTime();
+    int n = 0;
+    try {
+      n = provider.size();
+      Apro apro = builder.build(provider, 1);
+      apro.setInlineThreshold(Integer.MAX_VALUE);
+      apro.setDebug(false);
+      apro.run(iters);
+      if (apro.isCancelled()) return new Result(index, n, null, apro.getIterations(), false, (System.nanoTime() - start) / 1000, new CancellationException("Batch cancelled"));
+      return new Result(index, n, apro.getExemplars(), apro.getIterations(), apro.isConverged(), (System.nanoTime() - start) / 1000, null);
+    }
+    catch (RuntimeException e) {
+      Logger.warn(e, "[Batch] Problem %d failed", index);
+      return new Result(index, n, null, 0, false, (System.nanoTime() - start) / 1000, e);
+    }
+  }
+
+  private static boolean cancelled(CancellationToken token, Thread caller) {
+    return (token != null && token.isCancelled()) || caller.isInterrupted();
+  }
+  
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+}
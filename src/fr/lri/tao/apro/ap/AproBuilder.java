@@ -4,6 +4,9 @@ import fr.lri.tao.apro.data.DataProvider;
 import fr.lri.tao.apro.util.Logger;
 import fr.lri.tao.numa.NUMA;
 import fr.lri.tao.numa.SysUtils;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Utility class for comprehensibly building Apro instance 
  *  By default, NUMA is switched off, and number of groups (threads) is set to the available number of cores
@@ -17,6 +20,24 @@ public class AproBuilder {
   private Integer startNode = null;
   private Double damping;
   private Boolean debug;
+  private Integer convits;
+  private Apro.Precision precision;
+  private Apro.Partitioning partitioning;
+  private Integer chunking;
+  private ComputePool pool;
+  private Integer inlineThreshold;
+  private Boolean asynchronous;
+  private Boolean deterministic;
+  private Double selectiveEpsilon;
+  private Integer refreshInterval;
+  private IterationListener listener;
+  private int listenerStride = 1;
+  private CancellationToken token;
+  private List<Configuration> configurations;
+  private Double maxDamping;
+  private Boolean pruning;
+  /** Set once the NUMA settings were logged by an instance built here, the many problems of a batch log them once */
+  private final AtomicBoolean numaLogged = new AtomicBoolean();
   
   
   /** Constructor  */
@@ -66,6 +87,7 @@ public class AproBuilder {
     
     if (startNode == null) this.startNode = NUMA.getNode();
     else this.startNode = startNode;
+    numaLogged.set(false);
     
     return this;
   }
@@ -85,6 +107,7 @@ public class AproBuilder {
       this.coresPerNode = NUMA.getCoresPerNode();
       this.startNode = NUMA.getNode();
       Logger.info("[NUMA] %d nodes, %d coresPerNode", numNodes, coresPerNode);
+      numaLogged.set(false);
     }
     else {
       setNumaOff();
@@ -96,6 +119,7 @@ public class AproBuilder {
   public AproBuilder setNumaOff() {
     this.useNuma = false;
     this.numNodes = this.coresPerNode = this.startNode = null;
+    numaLogged.set(false);
     return this;
   }
   
@@ -117,16 +141,238 @@ public class AproBuilder {
     return this;
   }
   
+  /** Adapt the damping to the run, between the damping set and the given highest one, see Apro.setAdaptiveDamping()
+   * @param maxDamping Highest damping, below 1, 0 for a fixed damping as by default
+   * @return this builder
+   */
+  public AproBuilder setAdaptiveDamping(double maxDamping) {
+    this.maxDamping = maxDamping;
+    return this;
+  }
+  
+  /** Remove the pairs that can never become exemplar links from the layout, see Apro.setPruning()
+   * @param pruning true to prune the layout, false by default
+   * @return this builder
+   */
+  public AproBuilder setPruning(boolean pruning) {
+    this.pruning = pruning;
+    return this;
+  }
+  
+  /** Set the storage precision of the engine. Apro.Precision.FLOAT stores the similarities and messages 
+   * as floats, halving the memory and the traffic per iteration, while sums are still accumulated in double
+   * @param precision Storage precision, DOUBLE by default
+   * @return this builder
+   */
+  public AproBuilder setPrecision(Apro.Precision precision) {
+    this.precision = precision;
+    return this;
+  }
+  
+  /** Set how the nodes are split among the groups. Apro.Partitioning.NONZEROS gives each group about the same
+   * number of stored elements, instead of the same number of rows
+   * @param partitioning Partitioning, ROWS by default
+   * @return this builder
+   */
+  public AproBuilder setPartitioning(Apro.Partitioning partitioning) {
+    this.partitioning = partitioning;
+    return this;
+  }
+  
+  /** Split the nodes into several groups per thread, distributed dynamically in each phase. 
+   * Each thread works on its own groups first, then takes over the groups left by the slower threads
+   * @param chunking Number of groups per thread, 1 by default for one static group per thread
+   * @return this builder
+   */
+  public AproBuilder setChunking(int chunking) {
+    this.chunking = chunking;
+    return this;
+  }
+  
+  /** Set the pool the worker threads are borrowed from, ComputePool.getShared() by default.
+   * The number of threads is then the most the instance uses, fewer while the pool is busy with other jobs
+   * @param pool Compute pool
+   * @return this builder
+   */
+  public AproBuilder setComputePool(ComputePool pool) {
+    this.pool = pool;
+    return this;
+  }
+  
+  /** Set the size under which a problem runs inline on the calling thread, without worker threads
+   * @param inlineThreshold Number of nodes, Apro.DEFAULT_INLINE_THRESHOLD by default, 0 to always use the worker threads
+   * @return this builder
+   */
+  public AproBuilder setInlineThreshold(int inlineThreshold) {
+    this.inlineThreshold = inlineThreshold;
+    return this;
+  }
+  
+  /** Run the iterations without barriers between the phases, each thread sweeping its own groups 
+   * on the messages last published by the others. Not reproducible from run to run
+   * @param asynchronous true for asynchronous (Gauss-Seidel) iterations, false by default
+   * @return this builder
+   */
+  public AproBuilder setAsynchronous(boolean asynchronous) {
+    this.asynchronous = asynchronous;
+    return this;
+  }
+  
+  /** Guarantee bit-identical results for the same input and settings, whatever the number of threads,
+   * by refusing the asynchronous iterations and the time budgets
+   * @param deterministic true for reproducible runs, false by default
+   * @return this builder
+   */
+  public AproBuilder setDeterministic(boolean deterministic) {
+    this.deterministic = deterministic;
+    return this;
+  }
+  
+  /** Skip the rows and columns whose messages are estimated to change by less than epsilon. All of them are still 
+   * updated every refresh iterations. The exemplars are approximate, see Apro.setSelectiveUpdates(). Ignored for dense input
+   * @param epsilon Change under which a message is considered settled, 0 to update everything as by default
+   * @param refresh Number of iterations between two full updates
+   * @return this builder
+   */
+  public AproBuilder setSelectiveUpdates(double epsilon, int refresh) {
+    this.selectiveEpsilon = epsilon;
+    this.refreshInterval = refresh;
+    return this;
+  }
+  
+  /** Set a listener of the progress, called at the end of every stride iterations
+   * @param listener Listener, null for none
+   * @param stride Number of iterations between two calls
+   * @return this builder
+   */
+  public AproBuilder setIterationListener(IterationListener listener, int stride) {
+    this.listener = listener;
+    this.listenerStride = stride;
+    return this;
+  }
+  
+  /** Set the token through which the runs can be cancelled from another thread
+   * @param token Cancellation token, null for none
+   * @return this builder
+   */
+  public AproBuilder setCancellationToken(CancellationToken token) {
+    this.token = token;
+    return this;
+  }
+  
+  CancellationToken getCancellationToken() {
+    return token;
+  }
+  
+  /** @return Inline threshold of the Apro instances built, see Apro.setInlineThreshold() */
+  int getInlineThreshold() {
+    return inlineThreshold != null ? inlineThreshold : Apro.DEFAULT_INLINE_THRESHOLD;
+  }
+  
+  List<Configuration> getConfigurations() {
+    return configurations;
+  }
+  
+  /** Run several configurations side by side in one engine, sharing one pass over the similarities per phase, see Apro.setConfigurations()
+   * @param configurations Damping, preference and noise seed of each configuration
+   * @return this builder
+   */
+  public AproBuilder setConfigurations(Configuration... configurations) {
+    this.configurations = Arrays.asList(configurations);
+    return this;
+  }
+  
+  /** Stop early when the exemplars have not changed for the given number of iterations (MATLAB's convits)
+   * @param convits Number of stable iterations, 0 to always run all the iterations
+   * @return this builder
+   */
+  public AproBuilder setConvergence(int convits) {
+    this.convits = convits;
+    return this;
+  }
+  
   /** Returns the properly initialized Apro instance for running the Affinity Propagation
    * @param provider DataProvider for similarity matrix */
   public Apro build(DataProvider provider) {
+    return build(provider, groupCount);
+  }
+  
+  /** Returns an Apro instance with the given number of threads instead of the one of the builder */
+  Apro build(DataProvider provider, int threads) {
+    return build(provider, threads, useNuma);
+  }
+
+  /** Returns an Apro instance with the given number of threads and NUMA placement instead of the ones of the builder.
+   *  NUMA placement not set on the builder uses the detected parameters */
+  Apro build(DataProvider provider, int threads, boolean numa) {
     if (provider == null) throw new NullPointerException("Similarity matrix provider required");
-    Apro apro = new Apro(provider, groupCount, useNuma, numNodes, coresPerNode, startNode);
+    Apro apro;
+    boolean logNuma = !numaLogged.getAndSet(true);
+    if (!numa) apro = new Apro(provider, threads, false, null, null, null, logNuma);
+    else if (useNuma) apro = new Apro(provider, threads, true, numNodes, coresPerNode, startNode, logNuma);
+    else apro = new Apro(provider, threads, true, NUMA.getNumNodes(), NUMA.getCoresPerNode(), NUMA.getNode(), logNuma);
     if (debug != null) apro.setDebug(debug);
     if (damping != null) apro.setDamping(damping);
+    if (convits != null) apro.setConvergenceIterations(convits);
+    if (precision != null) apro.setPrecision(precision);
+    if (partitioning != null) apro.setPartitioning(partitioning);
+    if (chunking != null) apro.setChunking(chunking);
+    if (pool != null) apro.setComputePool(pool);
+    if (inlineThreshold != null) apro.setInlineThreshold(inlineThreshold);
+    if (asynchronous != null) apro.setAsynchronous(asynchronous);
+    if (deterministic != null) apro.setDeterministic(deterministic);
+    if (selectiveEpsilon != null) apro.setSelectiveUpdates(selectiveEpsilon, refreshInterval);
+    if (listener != null) apro.setIterationListener(listener, listenerStride);
+    if (token != null) apro.setCancellationToken(token);
+    if (configurations != null) apro.setConfigurations(configurations);
+    if (maxDamping != null) apro.setAdaptiveDamping(maxDamping);
+    if (pruning != null) apro.setPruning(pruning);
     return apro;    
   }
 
+  /** Returns a long-lived engine, which keeps its layout across runs until closed
+   * @param provider DataProvider for similarity matrix */
+  public AproEngine buildEngine(DataProvider provider) {
+    return new AproEngine(build(provider));
+  }
+
+  /** Returns a preference sweep, which clusters the similarities with several preferences on a long-lived engine,
+   * each preference starting from the messages of the previous one
+   * @param provider DataProvider for similarity matrix */
+  public AproSweep buildSweep(DataProvider provider) {
+    return new AproSweep(buildEngine(provider));
+  }
+
+  /** Returns a batch runner, which clusters many problems at once, each one on a single thread, 
+   * with as many problems in parallel as the number of threads of this builder. The problems use the other settings of the builder */
+  public AproBatch buildBatch() {
+    return new AproBatch(this, groupCount, pool != null ? pool : ComputePool.getShared());
+  }
+
+  /** Returns a runner of the connected components of sparse similarity matrices, which clusters each component
+   * as a problem of its own: the large components with the threads of this builder, one after the other,
+   * and the small ones as a batch, see buildBatch(). The components use the other settings of the builder */
+  public AproComponents buildComponents() {
+    return new AproComponents(this, groupCount, pool != null ? pool : ComputePool.getShared());
+  }
+
+  /** Times a few iterations on the dataset with several numbers of threads, chunkings and NUMA placements,
+   * up to the number of threads of this builder, and sets this builder to the fastest one.
+   * The other settings of the builder are used for the timed runs. See AproTuner
+   * @param provider DataProvider for similarity matrix, read once per setting tried
+   * @return Fastest setting, to be cached for datasets of the same shape and applied with AproTuner.Setting.apply() */
+  public AproTuner.Setting autotune(DataProvider provider) {
+    AproTuner.Setting best = tuner().tune(provider);
+    best.apply(this);
+    return best;
+  }
+
+  /** Returns a tuner trying up to the number of threads of this builder, with the other settings of the builder.
+   * Its setting is not applied to the builder by itself */
+  public AproTuner tuner() {
+    return new AproTuner(this, groupCount);
+  }
+
   @Override
   public String toString() {
     return "AproBuilder{groupCount=" + groupCount + ", useNuma=" + useNuma + ", numNodes=" + numNodes + ", coresPerNode=" + coresPerNode + ", startNode=" + startNode + '}';
@@ -0,0 +1,277 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.function.IntIntDoubleFunction;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.impl.SparseDoubleMatrix2D;
+import fr.lri.tao.apro.data.DataProvider;
+import fr.lri.tao.apro.util.Logger;
+import fr.lri.tao.apro.util.Utils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/** Clusters a sparse similarity matrix one connected component at a time. No message crosses from one component
+ *  to another, as the responsibilities and the availabilities only flow along the stored elements, so each component
+ *  is a problem of its own with the same messages as in the whole matrix. The components are found in a pass over
+ *  the stored elements, ignoring their direction. The components of at least the inline threshold of the builder
+ *  are run one after the other with the threads of the builder, the largest first; the smaller ones are run as a batch,
+ *  several at once, each one on a single thread, see AproBatch. The exemplars are merged back into the indexes
+ *  of the whole matrix.
+ *  <p>
+ *  Each component stops on its own convergence, instead of waiting for all the others. Dense matrices are run
+ *  as one problem, since the dense layout stores the zeros as well. Build it with AproBuilder.buildComponents() */
+public class AproComponents {
+
+  private final AproBuilder builder;
+  private final int threads;
+  private final ComputePool pool;
+
+  /** Component of each node of the last run, 0 being the largest one */
+  private int[] components;
+  private int[] sizes;
+  private int iterations;
+  private boolean converged;
+  private boolean cancelled;
+
+
+  /** @param builder Settings of the components
+   *  @param threads Most small components to run in parallel
+   *  @param pool Pool to borrow the threads of the small components from */
+  AproComponents(AproBuilder builder, int threads, ComputePool pool) {
+    this.builder = builder;
+    this.threads = threads;
+    this.pool = pool;
+  }
+
+  /** Finds the connected components of the similarity matrix and clusters each one of them
+   * @param provider Similarity matrix
+   * @param iters Maximum number of iterations of each component
+   * @return Exemplar of each node of the matrix, -1 for the nodes of the components not run when cancelled */
+  public int[] run(DataProvider provider, int iters) {
+    if (builder.getConfigurations() != null) throw new IllegalStateException("Configurations in lockstep are not supported by the components");
+    long start = System.currentTimeMillis();
+    DoubleMatrix2D s = provider.getMatrix();
+    final int n = s.rows();
+    iterations = 0;
+    converged = true;
+    cancelled = false;
+
+    if (s instanceof DenseDoubleMatrix2D) {
+      components = new int[n];
+      sizes = new int[] { n };
+      Logger.info("[Components] Dense matrix, run as a single problem");
+      return whole(provider, iters);
+    }
+    find(s);
+    int count = sizes.length;
+    if (count == 1) {
+      Logger.info("[Components] Connected matrix, run as a single problem");
+      return whole(provider, iters);
+    }
+
+    // local index of each node in its component, and the stored elements of each component
+    final int[] local = new int[n];
+    int[] filled = new int[count];
+    for (int i=0; i<n; i++) local[i] = filled[components[i]]++;
+    final int[] elements = new int[count];
+    s.forEachNonZero(new IntIntDoubleFunction() {
+      @Override
+      public double apply(int i, int k, double v) {
+        elements[components[i]]++;
+        return v;
+      }
+    });
+
+    final int threshold = builder.getInlineThreshold();
+    final DoubleMatrix2D[] matrices = new DoubleMatrix2D[count];
+    for (int c=0; c<count; c++) {
+      matrices[c] = new SparseDoubleMatrix2D(sizes[c], sizes[c], Math.max(1, elements[c]), 0.2, 0.5);
+    }
+    s.forEachNonZero(new IntIntDoubleFunction() {
+      @Override
+      public double apply(int i, int k, double v) {
+        matrices[components[i]].setQuick(local[i], local[k], v);
+        return v;
+      }
+    });
+    int[][] nodes = new int[count][];
+    for (int c=0; c<count; c++) nodes[c] = new int[sizes[c]];
+    Arrays.fill(filled, 0);
+    for (int i=0; i<n; i++) nodes[components[i]][filled[components[i]]++] = i;
+
+    int[] exemplars = new int[n];
+    Arrays.fill(exemplars, -1);
+    int large = 0;
+    while (large < count && sizes[large] >= threshold && !cancelled) {
+      merge(solve(new Component(matrices[large]), iters), nodes[large], exemplars);
+      matrices[large] = null;
+      large++;
+    }
+
+    if (!cancelled && large < count) {
+      List<Component> small = new ArrayList<Component>(count - large);
+      for (int c=large; c<count; c++) small.add(new Component(matrices[c]));
+      List<AproBatch.Result> results = new AproBatch(builder, threads, pool).run(small, iters);
+      for (AproBatch.Result result: results) {
+        if (result.getError() instanceof CancellationException) {
+          cancelled = true;
+          continue;
+        }
+        if (result.getError() != null) throw result.getError();
+        iterations = Math.max(iterations, result.getIterations());
+        converged &= result.isConverged();
+        merge(result.getExemplars(), nodes[large + result.getIndex()], exemplars);
+      }
+    }
+    if (cancelled) converged = false;
+
+    Logger.info("[Components] %d components, the largest of %d nodes, %d run with the worker threads and %d as a batch, in %d ms",
+        count, sizes[0], large, count - large, System.currentTimeMillis() - start);
+    return exemplars;
+  }
+
+  /** @return Component of each node in the last run, numbered by decreasing size */
+  public int[] getComponents() {
+    return components;
+  }
+
+  /** @return Number of connected components in the last run */
+  public int getComponentCount() {
+    return sizes == null ? 0 : sizes.length;
+  }
+
+  /** @return Number of nodes of each component in the last run, the largest first */
+  public int[] getSizes() {
+    return sizes;
+  }
+
+  /** @return Largest number of iterations of a component in the last run */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /** @return true if all the components converged in the last run */
+  public boolean isConverged() {
+    return converged;
+  }
+
+  /** @return true if the last run was cancelled before all the components were run */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Labels the connected components of the stored elements with a union-find, numbered by decreasing size,
+   *  ties in the order of their first node */
+  private void find(DoubleMatrix2D s) {
+    int n = s.rows();
+    final int[] parent = new int[n];
+    for (int i=0; i<n; i++) parent[i] = i;
+    s.forEachNonZero(new IntIntDoubleFunction() {
+      @Override
+      public double apply(int i, int k, double v) {
+        int ri = root(parent, i);
+        int rk = root(parent, k);
+        if (ri < rk) parent[rk] = ri;
+        else if (rk < ri) parent[ri] = rk;
+        return v;
+      }
+    });
+
+    // the root is the first node of its component
+    int[] label = new int[n];
+    int count = 0;
+    int[] counts = new int[n];
+    for (int i=0; i<n; i++) {
+      int r = root(parent, i);
+      if (r == i) label[i] = count++;
+      else label[i] = label[r];
+      counts[label[i]]++;
+    }
+    final int[] size = Arrays.copyOf(counts, count);
+    Integer[] order = new Integer[count];
+    for (int c=0; c<count; c++) order[c] = c;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return size[a] != size[b] ? Integer.compare(size[b], size[a]) : Integer.compare(a, b);
+      }
+    });
+    int[] rank = new int[count];
+    sizes = new int[count];
+    for (int c=0; c<count; c++) {
+      rank[order[c]] = c;
+      sizes[c] = size[order[c]];
+    }
+    components = new int[n];
+    for (int i=0; i<n; i++) components[i] = rank[label[i]];
+  }
+
+  private static int root(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /** Runs the whole matrix as one problem */
+  private int[] whole(DataProvider provider, int iters) {
+    int[] exemplars = solve(provider, iters);
+    if (exemplars != null) return exemplars;
+    exemplars = new int[provider.size()];
+    Arrays.fill(exemplars, -1);
+    return exemplars;
+  }
+
+  /** Runs one problem with the threads of the builder
+   * @return its exemplars, null if cancelled */
+  private int[] solve(DataProvider provider, int iters) {
+    Apro apro = builder.build(provider);
+    apro.run(iters);
+    if (apro.isCancelled()) {
+      cancelled = true;
+      converged = false;
+      return null;
+    }
+    iterations = Math.max(iterations, apro.getIterations());
+    converged &= apro.isConverged();
+    return apro.getExemplars();
+  }
+
+  /** Copies the exemplars of a component into the indexes of the whole matrix */
+  private static void merge(int[] local, int[] nodes, int[] exemplars) {
+    if (local == null) return;
+    for (int i=0; i<local.length; i++) {
+      exemplars[nodes[i]] = local[i] < 0 ? local[i] : nodes[local[i]];
+    }
+  }
+
+  /** Similarities of one component, in its local indexes */
+  private static class Component implements DataProvider {
+
+    private final DoubleMatrix2D s;
+
+    Component(DoubleMatrix2D s) {
+      this.s = s;
+    }
+
+    @Override
+    public DoubleMatrix2D getMatrix() {
+      return s;
+    }
+
+    @Override
+    public int size() {
+      return s.rows();
+    }
+
+    @Override
+    public void addNoise() {
+      Utils.addNoise(s);
+    }
+  }
+
+}
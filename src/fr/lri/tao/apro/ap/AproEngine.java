@@ -0,0 +1,96 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Arrays;
+
+/** Long-lived Affinity Propagation engine, for clustering the same sparsity pattern repeatedly. The layout of the groups
+ *  is built once and kept until close(), and the worker threads are kept by the compute pool. New similarities, preferences and damping can be set
+ *  between the runs; they are copied into the layout by the workers at the start of the next run.
+ *  The messages are kept across runs, so a run continues from the previous one unless resetMessages() is called */
+public class AproEngine implements Closeable {
+
+  private final Apro apro;
+
+
+  /** Builds the layout from the similarity matrix of the Apro instance
+   * @param apro Configured Apro instance, not to be run directly while the engine is open */
+  public AproEngine(Apro apro) {
+    this.apro = apro;
+    apro.begin();
+    apro.start();
+  }
+
+  /** Runs the iterations, starting from the current messages
+   * @param iters Maximum number of iterations to run */
+  public void run(int iters) {
+    apro.begin();
+    apro.start();
+    apro.iterate(iters, Long.MAX_VALUE);
+  }
+  
+  /** Runs the iterations, starting from the current messages, until the time budget runs out
+   *  or the exemplars settle if convergence iterations are set. At least one iteration is run
+   * @param budget Time budget of the run, including the pending updates */
+  public void run(Duration budget) {
+    long end = apro.deadline(budget);
+    apro.begin();
+    apro.start();
+    apro.iterate(Integer.MAX_VALUE, end);
+  }
+
+  /** Set new similarities for the next run. Only the elements of the original sparsity pattern are used,
+   * non-zeros outside of it are ignored with a warning
+   * @param s New similarity matrix, same size as the original one. Kept as the similarity matrix of the engine */
+  public void setSimilarities(DoubleMatrix2D s) {
+    apro.setUpdateS(s);
+  }
+
+  /** Set new preferences, the diagonal of the similarity matrix, for the next run.
+   * Applied after the similarities if both are set. Nodes without a diagonal element in the sparsity pattern are ignored
+   * @param preferences Preference of each node */
+  public void setPreferences(double[] preferences) {
+    apro.setUpdatePreferences(preferences);
+  }
+
+  /** Set the same preference for all the nodes, for the next run
+   * @param preference Preference of every node */
+  public void setPreference(double preference) {
+    double[] preferences = new double[apro.getN()];
+    Arrays.fill(preferences, preference);
+    apro.setUpdatePreferences(preferences);
+  }
+
+  /** Set the damping factor of the next runs */
+  public void setDamping(double dampingFactor) {
+    apro.setDamping(dampingFactor);
+  }
+
+  /** Clear the responsibilities and the availabilities before the next run, to start from scratch */
+  public void resetMessages() {
+    apro.setUpdateReset();
+  }
+
+  /** @return Exemplar of each node after the last run */
+  public int[] getExemplars() {
+    return apro.getExemplars();
+  }
+
+  /** @return Exemplars given by the current messages, can be called from another thread during a run, see Apro.snapshotExemplars() */
+  public int[] snapshotExemplars() {
+    return apro.snapshotExemplars();
+  }
+  
+  /** @return Apro instance of the engine, for the results and the statistics of the last run */
+  public Apro getApro() {
+    return apro;
+  }
+
+  /** Releases the layout of the engine for the next start. The results of the last run stay available */
+  @Override
+  public void close() {
+    apro.stop();
+  }
+
+}
@@ -0,0 +1,195 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.function.IntIntDoubleFunction;
+import fr.lri.tao.apro.util.Logger;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Clusters the same similarities with a series of preferences, all the nodes getting the same preference at each step.
+ *  The layout of the groups is built once, and each step starts from the messages of the previous one,
+ *  which usually settle much faster than from scratch when the preferences are close.
+ *  The search for a number of clusters bisects the preference between two bounds. Build it with AproBuilder.buildSweep() */
+public class AproSweep implements Closeable {
+
+  private final AproEngine engine;
+  private final List<Step> steps = new ArrayList<Step>();
+
+  /** Outcome of one preference of the sweep */
+  public static class Step {
+    private final double preference;
+    private final int clusters;
+    private final int[] exemplars;
+    private final int iterations;
+    private final boolean converged;
+    private final long time;
+
+    Step(double preference, int clusters, int[] exemplars, int iterations, boolean converged, long time) {
+      this.preference = preference;
+      this.clusters = clusters;
+      this.exemplars = exemplars;
+      this.iterations = iterations;
+      this.converged = converged;
+      this.time = time;
+    }
+
+    /** @return Preference of all the nodes */
+    public double getPreference() {
+      return preference;
+    }
+
+    /** @return Number of exemplars found */
+    public int getClusters() {
+      return clusters;
+    }
+
+    /** @return Exemplar of each node */
+    public int[] getExemplars() {
+      return exemplars;
+    }
+
+    /** @return Number of iterations ran */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /** @return true if the step stopped because the exemplars did not change for the convergence iterations */
+    public boolean isConverged() {
+      return converged;
+    }
+
+    /** @return Time of the step in microseconds, including setting the preferences */
+    public long getTime() {
+      return time;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("preference=%g: %d clusters, %d iterations%s, %d us", preference, clusters, iterations, converged ? "" : " (not converged)", time);
+    }
+  }
+
+
+  /** @param engine Engine to run the steps on, its messages are kept from one step to the next */
+  public AproSweep(AproEngine engine) {
+    this.engine = engine;
+  }
+
+  /** Runs one step per preference, in the order given, each one starting from the messages of the previous one
+   * @param preferences Preference of all the nodes at each step
+   * @param iters Maximum number of iterations of each step
+   * @return Steps ran, in the order of the preferences. Stops early when the run is cancelled */
+  public List<Step> run(double[] preferences, int iters) {
+    List<Step> result = new ArrayList<Step>();
+    for (double preference: preferences) {
+      Step step = step(preference, iters);
+      if (step == null) break;
+      result.add(step);
+    }
+    return result;
+  }
+
+  /** Bisects the preference for the given number of clusters, between the smallest and the largest similarity
+   * of distinct nodes, the usual range of the preferences
+   * @param clusters Number of clusters wanted
+   * @param iters Maximum number of iterations of each step
+   * @param maxSteps Maximum number of steps, the two bounds included
+   * @return Step with the number of clusters closest to the one wanted, the last one of the steps if several */
+  public Step search(int clusters, int iters, int maxSteps) {
+    final double[] range = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+    engine.getApro().getS().forEachNonZero(new IntIntDoubleFunction() {
+      @Override
+      public double apply(int i, int k, double v) {
+        if (i != k) {
+          range[0] = Math.min(range[0], v);
+          range[1] = Math.max(range[1], v);
+        }
+        return v;
+      }
+    });
+    if (range[0] > range[1]) throw new IllegalStateException("No similarities between distinct nodes");
+    return search(clusters, range[0], range[1], iters, maxSteps);
+  }
+
+  /** Bisects the preference for the given number of clusters. The number of clusters grows with the preference;
+   * when it is out of the numbers given by the bounds, the closest bound is returned with a warning.
+   * Each step starts from the messages of the previous one
+   * @param clusters Number of clusters wanted
+   * @param low Lowest preference, giving at most the number of clusters wanted
+   * @param high Highest preference, giving at least the number of clusters wanted
+   * @param iters Maximum number of iterations of each step
+   * @param maxSteps Maximum number of steps, the two bounds included
+   * @return Step with the number of clusters closest to the one wanted, null if cancelled before the first step */
+  public Step search(int clusters, double low, double high, int iters, int maxSteps) {
+    if (clusters < 1) throw new IllegalArgumentException("Number of clusters must be at least 1");
+    if (low > high) throw new IllegalArgumentException("Lowest preference above the highest one");
+    if (maxSteps < 2) throw new IllegalArgumentException("At least 2 steps required for the bounds");
+
+    Step lower = step(low, iters);
+    if (lower == null) return null;
+    if (lower.clusters >= clusters) {
+      if (lower.clusters > clusters) Logger.warn("[Sweep] %d clusters at the lowest preference %g, above the %d wanted", lower.clusters, low, clusters);
+      return lower;
+    }
+    Step upper = step(high, iters);
+    if (upper == null) return lower;
+    if (upper.clusters <= clusters) {
+      if (upper.clusters < clusters) Logger.warn("[Sweep] %d clusters at the highest preference %g, below the %d wanted", upper.clusters, high, clusters);
+      return upper;
+    }
+
+    Step best = closest(lower, upper, clusters);
+    for (int s=2; s<maxSteps; s++) {
+      Step step = step((lower.preference + upper.preference) / 2, iters);
+      if (step == null) break;
+      best = closest(best, step, clusters);
+      if (step.clusters == clusters) break;
+      if (step.clusters < clusters) lower = step;
+      else upper = step;
+    }
+    if (best.clusters != clusters) Logger.warn("[Sweep] %d clusters wanted, %d found in %d steps", clusters, best.clusters, maxSteps);
+    return best;
+  }
+
+  /** @return All the steps ran on this sweep, in order */
+  public List<Step> getSteps() {
+    return Collections.unmodifiableList(steps);
+  }
+
+  /** @return Engine running the steps */
+  public AproEngine getEngine() {
+    return engine;
+  }
+
+  /** Releases the layout of the engine */
+  @Override
+  public void close() {
+    engine.close();
+  }
+
+  /** Runs one preference from the current messages
+   * @return the step, null if the run was cancelled */
+  private Step step(double preference, int iters) {
+    long start = System.nanoTime();
+    engine.setPreference(preference);
+    engine.run(iters);
+    Apro apro = engine.getApro();
+    if (apro.isCancelled()) return null;
+    int[] exemplars = apro.getExemplars();
+    int k = 0;
+    for (int i=0; i<exemplars.length; i++) {
+      if (exemplars[i] == i) k++;
+    }
+    Step step = new Step(preference, k, exemplars, apro.getIterations(), apro.isConverged(), (System.nanoTime() - start) / 1000);
+    steps.add(step);
+    Logger.info("[Sweep] %s", step);
+    return step;
+  }
+
+  /** @return the step with the number of clusters closest to the one wanted, b on a tie */
+  private static Step closest(Step a, Step b, int clusters) {
+    return Math.abs(a.clusters - clusters) < Math.abs(b.clusters - clusters) ? a : b;
+  }
+
+}
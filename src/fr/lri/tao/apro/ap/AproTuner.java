@@ -0,0 +1,154 @@
+package fr.lri.tao.apro.ap;
+
+import fr.lri.tao.apro.data.DataProvider;
+import fr.lri.tao.apro.util.Logger;
+import fr.lri.tao.numa.NUMA;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Picks the number of threads, the chunking and the NUMA placement for a dataset by timing a few iterations
+ *  of each candidate setting on the real data, with the other settings of the builder. The candidates are
+ *  the powers of two up to the number of threads of the builder, each with one and four groups per thread,
+ *  with and without NUMA placement when there are several nodes. The best setting can be cached per dataset shape
+ *  and applied to the builder of the next runs. See AproBuilder.autotune() */
+public class AproTuner {
+
+  /** Setting measured by the tuner */
+  public static class Setting {
+    private final int threads;
+    private final int chunking;
+    private final boolean numa;
+    private double time = Double.NaN;
+
+    Setting(int threads, int chunking, boolean numa) {
+      this.threads = threads;
+      this.chunking = chunking;
+      this.numa = numa;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public int getChunking() {
+      return chunking;
+    }
+
+    public boolean isNuma() {
+      return numa;
+    }
+
+    /** @return Measured time per iteration in microseconds */
+    public double getTime() {
+      return time;
+    }
+
+    /** Sets the threads, the chunking and the NUMA placement of the builder to this setting
+     * @return the builder */
+    public AproBuilder apply(AproBuilder builder) {
+      builder.setThreads(threads).setChunking(chunking);
+      if (numa) builder.setNumaAuto();
+      else builder.setNumaOff();
+      return builder;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("threads=%d, chunking=%d, numa=%s: %.1f us / iteration", threads, chunking, numa ? "on" : "off", time);
+    }
+  }
+
+  private final AproBuilder builder;
+  private final int maxThreads;
+  private int warmup = 2;
+  private int measured = 10;
+  private final List<Setting> results = new ArrayList<Setting>();
+
+
+  /** @param builder Settings of the runs, its number of threads is the largest one tried
+   *  @param maxThreads Largest number of threads to try */
+  AproTuner(AproBuilder builder, int maxThreads) {
+    this.builder = builder;
+    this.maxThreads = Math.max(1, maxThreads);
+  }
+
+  /** Set the number of iterations run for each candidate
+   * @param warmup Iterations run before the timing starts, at least 1, 2 by default
+   * @param measured Iterations timed, 10 by default
+   * @return this tuner */
+  public AproTuner setIterations(int warmup, int measured) {
+    if (warmup < 1 || measured < 1) throw new IllegalArgumentException("At least one warm-up and one timed iteration required");
+    this.warmup = warmup;
+    this.measured = measured;
+    return this;
+  }
+
+  /** @return Candidate settings for a dataset of n nodes */
+  List<Setting> candidates(int n) {
+    boolean numaNodes = NUMA.isAvailable() && NUMA.getNumNodes() > 1;
+    List<Integer> threads = new ArrayList<Integer>();
+    for (int t=1; t<maxThreads; t*=2) threads.add(t);
+    threads.add(maxThreads);
+
+    List<Setting> candidates = new ArrayList<Setting>();
+    for (int t: threads) {
+      if (t > n) break;
+      for (int chunking: new int[] {1, 4}) {
+        if (chunking > 1 && (t == 1 || (long) t * chunking > n)) continue;
+        candidates.add(new Setting(t, chunking, false));
+        if (numaNodes && t > 1) candidates.add(new Setting(t, chunking, true));
+      }
+    }
+    return candidates;
+  }
+
+  /** Times all the candidate settings on the dataset
+   * @param provider Dataset to tune for, read once per candidate
+   * @return Fastest setting */
+  public Setting tune(DataProvider provider) {
+    results.clear();
+    Setting best = null;
+    List<Setting> candidates = candidates(provider.size());
+    for (Setting setting: candidates) {
+      boolean inline = measure(provider, setting);
+      // the first candidate also warms up the code for all the others, it is timed again once compiled
+      if (setting == candidates.get(0) && !inline && candidates.size() > 1) measure(provider, setting);
+      results.add(setting);
+      Logger.info("[Tune] %s", setting);
+      if (best == null || setting.time < best.time) best = setting;
+      // every candidate would run inline on the calling thread the same way
+      if (inline) break;
+      if (builder.getCancellationToken() != null && builder.getCancellationToken().isCancelled()) break;
+    }
+    Logger.info("[Tune] Best for %d nodes: %s", provider.size(), best);
+    return best;
+  }
+
+  /** @return Settings measured by the last tune(), in the order they were tried */
+  public List<Setting> getResults() {
+    return Collections.unmodifiableList(results);
+  }
+
+  /** Runs the iterations of a candidate and records its time per iteration
+   * @return true if the candidate ran inline */
+  private boolean measure(DataProvider provider, final Setting setting) {
+    Apro apro = builder.build(provider, setting.threads, setting.numa);
+    apro.setChunking(setting.chunking);
+    apro.setConvergenceIterations(0);
+    apro.setDebug(false);
+    final long[] times = new long[2];
+    apro.setIterationListener(new IterationListener() {
+      @Override
+      public void iterated(Apro apro, int iteration, int exemplars, int changes) {
+        if (iteration == warmup) times[0] = System.nanoTime();
+        times[1] = System.nanoTime();
+      }
+    }, 1);
+    apro.run(warmup + measured);
+    int timed = apro.getIterations() - warmup;
+    setting.time = timed > 0 ? (times[1] - times[0]) / 1000d / timed : Double.NaN;
+    return apro.isInline();
+  }
+
+}
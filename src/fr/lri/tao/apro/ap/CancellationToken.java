@@ -0,0 +1,19 @@
+package fr.lri.tao.apro.ap;
+
+/** Cooperative cancellation of runs. The workers check the token between the groups and at the end of each iteration, 
+ *  so a cancelled run stops within one group of work per thread, and gives its cores back to the compute pool.
+ *  The same token can be shared by several runs, for example all the problems of a batch */
+public class CancellationToken {
+
+  private volatile boolean cancelled = false;
+
+  /** Asks the runs using this token to stop. Can be called from any thread */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+}
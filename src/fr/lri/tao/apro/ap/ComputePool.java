@@ -0,0 +1,125 @@
+package fr.lri.tao.apro.ap;
+
+import fr.lri.tao.numa.SysUtils;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Process-wide pool of worker threads with a fixed budget of cores, shared by all the Apro and HiAP runs.
+ *  A job reserves cores before each task, counting its own calling thread, and waits while the budget is used up.
+ *  It gets at most a fair share of the budget among the jobs running or waiting, and gives cores back or takes more
+ *  at the end of an iteration when the share changes. The threads are kept and reused between the jobs */
+public class ComputePool {
+
+  private static ComputePool shared;
+
+  private int budget;
+  /** Cores reserved by the running jobs */
+  private volatile int used = 0;
+  /** Jobs holding or waiting for cores */
+  private volatile int jobs = 0;
+  private volatile int waiting = 0;
+
+  private final ExecutorService threads;
+
+
+  /** @param budget Number of cores the jobs of this pool may use at once */
+  public ComputePool(int budget) {
+    if (budget < 1) throw new IllegalArgumentException("Budget must be at least 1 core");
+    this.budget = budget;
+    this.threads = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "apro-worker-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /** @return Pool used by default, with a budget of all the available cores, or of the apro.cores system property */
+  public static synchronized ComputePool getShared() {
+    if (shared == null) shared = new ComputePool(Integer.getInteger("apro.cores", SysUtils.availableProcessors()));
+    return shared;
+  }
+
+  /** Change the number of cores the jobs may use at once, applied as the jobs reserve their cores again */
+  public synchronized void setBudget(int budget) {
+    if (budget < 1) throw new IllegalArgumentException("Budget must be at least 1 core");
+    this.budget = budget;
+    this.notifyAll();
+  }
+
+  public synchronized int getBudget() {
+    return budget;
+  }
+
+  /** Reserves cores for a task, the calling thread included. Blocks until at least one core is free, regardless of interrupts
+   * @param wanted Number of cores the job can use
+   * @return Number of cores granted, between 1 and wanted */
+  int acquire(int wanted) {
+    return acquire(wanted, false, null);
+  }
+  
+  /** Reserves cores for a task, the calling thread included. Blocks until at least one core is free, 
+   * or until the wait is given up. The interrupt status of the calling thread is kept
+   * @param wanted Number of cores the job can use
+   * @param cancellable true to give up when the calling thread is interrupted or the token cancelled
+   * @param token Token checked every few milliseconds while waiting, null for none
+   * @return Number of cores granted, between 1 and wanted, 0 if the wait was given up */
+  synchronized int acquire(int wanted, boolean cancellable, CancellationToken token) {
+    jobs++;
+    waiting++;
+    boolean interrupted = false;
+    try {
+      while (used >= budget) {
+        if (cancellable && (interrupted || Thread.currentThread().isInterrupted() || (token != null && token.isCancelled()))) {
+          jobs--;
+          return 0;
+        }
+        try {
+          if (cancellable && token != null) this.wait(10);
+          else this.wait();
+        }
+        catch (InterruptedException e) { 
+          interrupted = true; 
+        }
+      }
+    }
+    finally {
+      waiting--;
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+    int granted = Math.min(wanted, Math.min(share(), budget - used));
+    used += granted;
+    return granted;
+  }
+
+  /** Gives back the cores of a task */
+  synchronized void release(int cores) {
+    used -= cores;
+    jobs--;
+    this.notifyAll();
+  }
+
+  /** @return true if a job holding the given cores should release them and reserve again:
+   *  it holds more than its share while others are waiting, or less than it wants and than its share while cores are free */
+  boolean unbalanced(int granted, int wanted) {
+    int share = share();
+    if (waiting > 0) return granted > share;
+    return granted < Math.min(wanted, share) && used < budget;
+  }
+
+  private int share() {
+    return Math.max(1, budget / Math.max(1, jobs));
+  }
+
+  /** Runs a task of a job on one of the threads */
+  void execute(Runnable task) {
+    threads.execute(task);
+  }
+
+}
@@ -0,0 +1,54 @@
+package fr.lri.tao.apro.ap;
+
+/** Settings of one of the configurations run side by side in lockstep, see Apro.setConfigurations().
+ *  The settings not given are those of the engine: its damping, and the diagonal of the similarity matrix as preferences */
+public class Configuration {
+
+  private Double damping;
+  private Double preference;
+  private Long seed;
+
+  /** Set the damping factor of this configuration
+   * @param dampingFactor Dampening value between 0 and 1
+   * @return this configuration */
+  public Configuration setDamping(double dampingFactor) {
+    this.damping = dampingFactor;
+    return this;
+  }
+
+  /** Set the same preference for all the nodes that have a diagonal element
+   * @return this configuration */
+  public Configuration setPreference(double preference) {
+    this.preference = preference;
+    return this;
+  }
+
+  /** Add the noise of the given seed to the similarities and the preferences of this configuration,
+   * the same as DataProvider.addNoise(seed)
+   * @return this configuration */
+  public Configuration setNoiseSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /** @return Damping factor, null for the one of the engine */
+  public Double getDamping() {
+    return damping;
+  }
+
+  /** @return Preference of all the nodes, null for the diagonal of the similarity matrix */
+  public Double getPreference() {
+    return preference;
+  }
+
+  /** @return Seed of the noise, null for none */
+  public Long getNoiseSeed() {
+    return seed;
+  }
+
+  @Override
+  public String toString() {
+    return "Configuration{damping=" + damping + ", preference=" + preference + ", seed=" + seed + '}';
+  }
+
+}
@@ -0,0 +1,147 @@
+package fr.lri.tao.apro.ap;
+
+import fr.lri.tao.apro.util.Logger;
+import java.util.Arrays;
+
+/** Adaptive damping of a run, see Apro.setAdaptiveDamping(). Called at the end of each iteration, it watches over
+ *  a window of iterations the number of exemplars, the changes of the exemplar decisions, and the total change
+ *  of the self-responsibilities r(k, k), the evidence of the decisions. The damping is raised by a step when the number
+ *  of exemplars goes up and down, or when the decisions change in most iterations without calming down: neither
+ *  the changes get fewer than in the window before, nor the messages settle. It is raised as well
+ *  when the decisions have not stayed stable for half of the last HORIZON iterations since the last change of the damping.
+ *  It is lowered by a step, down to the damping set, when the decisions are stable and the messages settle. 
+ *  After each change of the damping, a whole window is observed before the next one. When the damping has to be raised
+ *  again soon after being lowered, the decisions must stay stable twice as long before the next lowering */
+class DampingController {
+
+  /** Number of iterations observed before changing the damping */
+  static final int WINDOW = 10;
+  /** Change of the damping at each step */
+  static final double STEP = 0.05;
+  /** Iterations after which decisions that change now and then, with a slow oscillation, raise the damping */
+  static final int HORIZON = 10 * WINDOW;
+  /** The messages settle when their change over a window falls under this fraction */
+  static final double SETTLE = 0.5;
+
+  private final double base;
+  private final double max;
+  /** Number of steps above the damping set */
+  private int level = 0;
+  private double damping;
+
+  /** Self-responsibilities at the end of the previous iteration */
+  private final double[] previous;
+  /* Observations of the last WINDOW+1 iterations, indexed by iteration modulo WINDOW+1 */
+  private final int[] counts = new int[WINDOW+1];
+  /** Changes of the decisions in the last 2*WINDOW iterations, indexed by iteration modulo 2*WINDOW */
+  private final int[] changed = new int[2*WINDOW];
+  private final double[] deltas = new double[WINDOW+1];
+  /** Iterations observed since the last change of the damping */
+  private int since = 0;
+  private int raised = 0;
+  private int lowered = 0;
+  /** Iterations with stable decisions before lowering the damping */
+  private int patience = WINDOW;
+  private int stableSince = 0;
+  /** Iteration of the last lowering of the damping */
+  private int lastLowered = Integer.MIN_VALUE / 2;
+
+  /** Damping used by each iteration */
+  private double[] schedule = new double[64];
+  private int length = 0;
+
+
+  /** @param base Damping set, the lowest one
+   *  @param max Highest damping
+   *  @param n Number of nodes */
+  DampingController(double base, double max, int n) {
+    this.base = base;
+    this.max = max;
+    this.damping = base;
+    this.previous = new double[n];
+  }
+
+  /** Observes the end of an iteration, while all the workers wait
+   * @param iteration Number of the iteration ended, from 1
+   * @param exemplarCount Number of exemplars after the iteration
+   * @param changes Number of exemplar decisions changed by the iteration
+   * @param rdiag Self-responsibilities of all the nodes after the iteration
+   * @return Damping of the next iteration */
+  double iterated(int iteration, int exemplarCount, int changes, double[] rdiag) {
+    if (length == schedule.length) schedule = Arrays.copyOf(schedule, 2 * length);
+    schedule[length++] = damping;
+
+    double delta = 0;
+    for (int k=0; k<rdiag.length; k++) {
+      delta += Math.abs(rdiag[k] - previous[k]);
+    }
+    System.arraycopy(rdiag, 0, previous, 0, rdiag.length);
+    int slot = iteration % (WINDOW+1);
+    counts[slot] = exemplarCount;
+    changed[iteration % (2*WINDOW)] = changes;
+    deltas[slot] = delta;
+    stableSince = changes > 0 ? 0 : stableSince + 1;
+    if (++since <= WINDOW) return damping;
+
+    // directions of the number of exemplars over the window, and iterations changing the decisions
+    int flips = 0;
+    int direction = 0;
+    int unsettled = 0;
+    long recent = 0, before = 0;
+    for (int t=iteration-2*WINDOW+1; t<=iteration-WINDOW; t++) {
+      if (t > 0) before += changed[t % (2*WINDOW)];
+    }
+    for (int t=iteration-WINDOW+1; t<=iteration; t++) {
+      int diff = counts[t % (WINDOW+1)] - counts[(t-1) % (WINDOW+1)];
+      if (diff != 0) {
+        int sign = diff > 0 ? 1 : -1;
+        if (direction != 0 && sign != direction) flips++;
+        direction = sign;
+      }
+      int c = changed[t % (2*WINDOW)];
+      if (c > 0) unsettled++;
+      recent += c;
+    }
+    double old = deltas[(iteration-WINDOW) % (WINDOW+1)];
+
+    // a transient calms down: the decisions change less and less often, and the messages settle
+    boolean calming = recent <= SETTLE * before || delta <= SETTLE * old;
+    boolean oscillating = flips >= WINDOW / 3 || (unsettled >= WINDOW / 2 && !calming) || (since >= HORIZON && stableSince < HORIZON / 2);
+
+    if (oscillating && damping < max) {
+      level++;
+      damping = Math.min(max, base + level * STEP);
+      raised++;
+      since = 0;
+      if (iteration - lastLowered <= 4 * WINDOW) patience *= 2;
+      Logger.info("[Damping] Iteration %d: oscillation, damping raised to %.2f", iteration, damping);
+    }
+    else if (stableSince >= patience && delta < old && level > 0) {
+      level--;
+      damping = base + level * STEP;
+      lowered++;
+      since = 0;
+      lastLowered = iteration;
+      Logger.info("[Damping] Iteration %d: stable, damping lowered to %.2f", iteration, damping);
+    }
+    return damping;
+  }
+
+  /** @return Damping used by each iteration so far */
+  double[] getSchedule() {
+    return Arrays.copyOf(schedule, length);
+  }
+
+  int getRaised() {
+    return raised;
+  }
+
+  int getLowered() {
+    return lowered;
+  }
+
+  double getDamping() {
+    return damping;
+  }
+
+}
@@ -0,0 +1,219 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import java.util.Arrays;
+import java.util.List;
+
+/** Group for dense similarity matrices. Rows are stored in flat row-major arrays, and the owned columns 
+ *  in flat column-major arrays, so no index arrays are needed. Zero similarities are kept as regular elements.
+ *  Messages are published to the other layout in blocks of BLOCK rows (columns), 
+ *  so that every cache line written in the other layout is filled at once */
+class DenseGroup extends Group {
+
+  /** Number of rows (columns) published together, two cache lines of doubles */
+  static final int BLOCK = 16;
+  
+  /** Rows of the group, element (i, k) at i*n + k */
+  double[] s;
+  double[] a;
+  double[] r;
+  
+  /** Owned columns, element (i, k) at (k-startIndex)*n + i */
+  double[] rt;
+  double[] at;
+  
+  /** All the groups, to publish the messages to */
+  DenseGroup[] peers;
+  
+  
+  DenseGroup(Apro apro, int gid) {
+    super(apro, gid);
+  }
+  
+  /** Builds the table through which the groups publish their messages to each other */
+  static void link(List<Group> groups) {
+    DenseGroup[] peers = new DenseGroup[groups.size()];
+    for (int gid=0; gid<peers.length; gid++) {
+      peers[gid] = (DenseGroup) groups.get(gid);
+    }
+    for (DenseGroup group: peers) {
+      group.peers = peers;
+    }
+  }
+  
+  /** Allocates the arrays and copies the rows of this group from the similarity matrix */
+  void load(DoubleMatrix2D matrix) {
+    int len = size * n;
+    s = new double[len];
+    a = new double[len];
+    r = new double[len];
+    rt = new double[len];
+    at = new double[len];
+    for (int i=0; i<size; i++) {
+      int off = i*n;
+      for (int k=0; k<n; k++) {
+        s[off+k] = matrix.getQuick(i+startIndex, k);
+      }
+    }
+  }
+  
+  @Override
+  long update(DoubleMatrix2D matrix) {
+    long nonZeros = 0;
+    for (int i=0; i<size; i++) {
+      int off = i*n;
+      for (int k=0; k<n; k++) {
+        double v = matrix.getQuick(i+startIndex, k);
+        s[off+k] = v;
+        if (v != 0) nonZeros++;
+      }
+    }
+    return nonZeros;
+  }
+  
+  @Override
+  int updatePreferences(double[] preferences) {
+    for (int i=0; i<size; i++) {
+      s[i*n + i+startIndex] = preferences[i+startIndex];
+    }
+    return 0;
+  }
+  
+  @Override
+  void resetMessages() {
+    super.resetMessages();
+    Arrays.fill(a, 0);
+    Arrays.fill(r, 0);
+    Arrays.fill(rt, 0);
+    Arrays.fill(at, 0);
+  }
+  
+  @Override
+  long elements() {
+    return 2L * size * n;
+  }
+  
+  @Override
+  int length(int i) {
+    return n;
+  }
+  
+  @Override
+  int column(int i, int j) {
+    return j;
+  }
+  
+  @Override
+  double getS(int i, int j) {
+    return s[i*n + j];
+  }
+  
+  @Override
+  double getA(int i, int j) {
+    return a[i*n + j];
+  }
+  
+  @Override
+  double getR(int i, int j) {
+    return r[i*n + j];
+  }
+  
+  
+  @Override
+  void computeResponsibilities() {
+    double damp = apro.getCurrentDamping();    
+    double c = 1-damp;
+    double[] rdiag = apro.rdiag;
+    for (int i0=0; i0<size; i0+=BLOCK) {
+      int i1 = Math.min(i0+BLOCK, size);
+      for (int i=i0; i<i1; i++) {
+        int off = i*n;
+        
+        double max1 = Double.NEGATIVE_INFINITY;
+        double max2 = Double.NEGATIVE_INFINITY;
+        int kmax = 0;
+        for (int k=0; k<n; k++) {
+          double t = a[off+k] + s[off+k];
+          if (t > max1) {
+            max2 = max1;
+            max1 = t;
+            kmax = k;
+          }
+          else if (t >= max2) {
+            max2 = t;
+          }
+        }
+        
+        // r(i,k) = s(i,k) - max over k' != k of a(i,k') + s(i,k'): max1 everywhere but at the maximum itself
+        double old = r[off+kmax];
+        for (int k=0; k<n; k++) {
+          r[off+k] = c * (s[off+k] - max1) + damp * r[off+k];
+        }
+        r[off+kmax] = c * (s[off+kmax] - max2) + damp * old;
+        rdiag[i+startIndex] = r[off+i+startIndex];
+      }
+      
+      // publish the block to the column owners, BLOCK consecutive rows of each column at a time
+      for (DenseGroup owner: peers) {
+        double[] dst = owner.rt;
+        for (int kk=0; kk<owner.size; kk++) {
+          int k = kk+owner.startIndex;
+          int base = kk*n + startIndex;
+          for (int i=i0; i<i1; i++) {
+            dst[base+i] = r[i*n + k];
+          }
+        }
+      }
+    }
+  }
+
+  
+  /** Computes the availabilities of the owned columns, reducing their sums of positive responsibilities 
+   * on the way, and publishes them to the row owners */
+  @Override
+  void computeAvailabilities() {
+    double damp = apro.getCurrentDamping();
+    double c = 1-damp;
+    double[] rdiag = apro.rdiag;
+    double[] sumr = apro.sumr;
+    exemplarCount = 0;
+    changes = 0;
+    for (int kk0=0; kk0<size; kk0+=BLOCK) {
+      int kk1 = Math.min(kk0+BLOCK, size);
+      for (int kk=kk0; kk<kk1; kk++) {
+        int k = kk+startIndex;
+        int off = kk*n;
+        double rkk = rdiag[k];
+        double maxkk = Math.max(0, rkk);
+
+        double sumk = 0;
+        for (int i=0; i<n; i++) {
+          sumk += Math.max(0, rt[off+i]);
+        }
+        sumr[k] = sumk;
+
+        // a(i,k) = min(0, r(k,k) + sum of positive r(i',k) for i' != i,k), except for a(k,k) = sum of positive r(i',k) for i' != k
+        double old = at[off+k];
+        for (int i=0; i<n; i++) {
+          at[off+i] = c * Math.min(0, rkk + (sumk - Math.max(0, rt[off+i]) - maxkk)) + damp * at[off+i];
+        }
+        double akk = c * (sumk - maxkk) + damp * old;
+        at[off+k] = akk;
+        decide(kk, akk + rkk > 0);
+      }
+      
+      // publish the block to the row owners, BLOCK consecutive columns of each row at a time
+      for (DenseGroup owner: peers) {
+        double[] dst = owner.a;
+        for (int ii=0; ii<owner.size; ii++) {
+          int i = ii+owner.startIndex;
+          int base = ii*n + startIndex;
+          for (int kk=kk0; kk<kk1; kk++) {
+            dst[base+kk] = at[kk*n + i];
+          }
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,200 @@
+package fr.lri.tao.apro.ap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Group storing similarities and messages in double precision */
+class DoubleGroup extends MessageGroup {
+
+  double[][] s;
+  double[][] a;
+  double[][] r;
+  
+  /** Responsibilities of the owned columns, published by the row owners */
+  double[][] rt;
+  /** Availabilities of the owned columns */
+  double[][] at;
+  
+  /** Column k of the transposed responsibilities, shared by all the groups */
+  double[][] rcols;
+  /** Row i of the availabilities, shared by all the groups */
+  double[][] arows;
+  
+  
+  DoubleGroup(Apro apro, int gid) {
+    super(apro, gid);
+    s = new double[size][];    
+    a = new double[size][];
+    r = new double[size][];
+    rt = new double[size][];
+    at = new double[size][];
+  }
+  
+  /** Builds the tables through which the groups publish their messages to each other */
+  static void link(List<Group> groups, int n) {
+    double[][] rcols = new double[n][];
+    double[][] arows = new double[n][];
+    for (Group g: groups) {
+      DoubleGroup group = (DoubleGroup) g;
+      for (int i=0; i<group.size; i++) {
+        arows[i+group.startIndex] = group.a[i];
+        rcols[i+group.startIndex] = group.rt[i];
+      }
+      group.rcols = rcols;
+      group.arows = arows;
+    }
+  }
+  
+  @Override
+  void allocateRows() {
+    super.allocateRows();
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      s[i] = new double[len];
+      a[i] = new double[len];
+      r[i] = new double[len];
+    }
+  }
+  
+  @Override
+  void allocateColumns() {
+    super.allocateColumns();
+    for (int kk=0; kk<size; kk++) {
+      int len = colLengths[kk];
+      rt[kk] = new double[len];
+      at[kk] = new double[len];
+    }
+  }
+  
+  @Override
+  void resetMessages() {
+    super.resetMessages();
+    for (int i=0; i<size; i++) {
+      Arrays.fill(a[i], 0);
+      Arrays.fill(r[i], 0);
+      Arrays.fill(rt[i], 0);
+      Arrays.fill(at[i], 0);
+    }
+  }
+  
+  @Override
+  void retain(int i, int[] kept, int count) {
+    double[] si = new double[count];
+    for (int c=0; c<count; c++) si[c] = s[i][kept[c]];
+    s[i] = si;
+    a[i] = new double[count];
+    r[i] = new double[count];
+  }
+  
+  @Override
+  void setS(int i, int j, double v) {
+    s[i][j] = v;
+  }
+  
+  @Override
+  double getS(int i, int j) {
+    return s[i][j];
+  }
+  
+  @Override
+  double getA(int i, int j) {
+    return a[i][j];
+  }
+  
+  @Override
+  double getR(int i, int j) {
+    return r[i][j];
+  }
+  
+  @Override
+  double getRt(int kk, int p) {
+    return rt[kk][p];
+  }
+  
+  @Override
+  double getAt(int kk, int p) {
+    return at[kk][p];
+  }
+  
+  @Override
+  void calcMax(int i) {
+    int len = lengths[i];
+    double[] ai = a[i];
+    double[] si = s[i];
+    double m1 = Double.NEGATIVE_INFINITY;
+    double m2 = Double.NEGATIVE_INFINITY;
+    int jm = 0;
+    for (int j=0; j<len; j++) {
+      double t = ai[j] + si[j];
+      if (t > m1) {
+        m2 = m1;
+        m1 = t;
+        jm = j;
+      }
+      else if (t >= m2) {
+        m2 = t;
+      }
+    }
+    max1 = m1;
+    max2 = m2;
+    jmax = jm;
+  }
+  
+  /** r(i,k) = s(i,k) - max over k' != k of a(i,k') + s(i,k'): max1 everywhere but at the maximum itself */
+  @Override
+  void updateRow(int i, double damp) {
+    double c = 1-damp;
+    int len = lengths[i];
+    double[] ri = r[i];
+    double[] si = s[i];
+    int[] ki = indices[i];
+    int[] tposi = tpos[i];
+    double[][] rcols = this.rcols;
+    double old = ri[jmax];
+    for (int j=0; j<len; j++) {
+      double rij = c * (si[j] - max1) + damp * ri[j];
+      ri[j] = rij;
+      rcols[ki[j]][tposi[j]] = rij;
+    }
+    double rij = c * (si[jmax] - max2) + damp * old;
+    ri[jmax] = rij;
+    rcols[ki[jmax]][tposi[jmax]] = rij;
+  }
+  
+  @Override
+  double sumColumn(int kk) {
+    int len = colLengths[kk];
+    double[] rtk = rt[kk];
+    double sumk = 0;
+    for (int p=0; p<len; p++) {
+      sumk += Math.max(0, rtk[p]);
+    }
+    return sumk;
+  }
+  
+  /** a(i,k) = min(0, r(k,k) + sum of positive r(i',k) for i' != i,k), except for a(k,k) = sum of positive r(i',k) for i' != k */
+  @Override
+  void updateColumn(int kk, double rkk, double sumk, double damp) {
+    double c = 1-damp;
+    double maxkk = Math.max(0, rkk);
+    int len = colLengths[kk];
+    double[] rtk = rt[kk];
+    double[] atk = at[kk];
+    int[] rows = colIndices[kk];
+    int[] pos = colPos[kk];
+    double[][] arows = this.arows;
+    int pd = colDiag[kk];
+    double old = pd >= 0 ? atk[pd] : 0;
+    for (int p=0; p<len; p++) {
+      double aik = c * Math.min(0, rkk + (sumk - Math.max(0, rtk[p]) - maxkk)) + damp * atk[p];
+      atk[p] = aik;
+      arows[rows[p]][pos[p]] = aik;
+    }
+    if (pd >= 0) {
+      double akk = c * (sumk - maxkk) + damp * old;
+      atk[pd] = akk;
+      arows[rows[pd]][pos[pd]] = akk;
+    }
+  }
+
+}
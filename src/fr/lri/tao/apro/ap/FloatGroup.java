@@ -0,0 +1,201 @@
+package fr.lri.tao.apro.ap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Group storing similarities and messages in single precision, halving the memory traffic of an iteration.
+ *  All the arithmetic, including the column sums and the diagonal, is still done in double */
+class FloatGroup extends MessageGroup {
+
+  float[][] s;
+  float[][] a;
+  float[][] r;
+  
+  /** Responsibilities of the owned columns, published by the row owners */
+  float[][] rt;
+  /** Availabilities of the owned columns */
+  float[][] at;
+  
+  /** Column k of the transposed responsibilities, shared by all the groups */
+  float[][] rcols;
+  /** Row i of the availabilities, shared by all the groups */
+  float[][] arows;
+  
+  
+  FloatGroup(Apro apro, int gid) {
+    super(apro, gid);
+    s = new float[size][];    
+    a = new float[size][];
+    r = new float[size][];
+    rt = new float[size][];
+    at = new float[size][];
+  }
+  
+  /** Builds the tables through which the groups publish their messages to each other */
+  static void link(List<Group> groups, int n) {
+    float[][] rcols = new float[n][];
+    float[][] arows = new float[n][];
+    for (Group g: groups) {
+      FloatGroup group = (FloatGroup) g;
+      for (int i=0; i<group.size; i++) {
+        arows[i+group.startIndex] = group.a[i];
+        rcols[i+group.startIndex] = group.rt[i];
+      }
+      group.rcols = rcols;
+      group.arows = arows;
+    }
+  }
+  
+  @Override
+  void allocateRows() {
+    super.allocateRows();
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      s[i] = new float[len];
+      a[i] = new float[len];
+      r[i] = new float[len];
+    }
+  }
+  
+  @Override
+  void allocateColumns() {
+    super.allocateColumns();
+    for (int kk=0; kk<size; kk++) {
+      int len = colLengths[kk];
+      rt[kk] = new float[len];
+      at[kk] = new float[len];
+    }
+  }
+  
+  @Override
+  void resetMessages() {
+    super.resetMessages();
+    for (int i=0; i<size; i++) {
+      Arrays.fill(a[i], 0);
+      Arrays.fill(r[i], 0);
+      Arrays.fill(rt[i], 0);
+      Arrays.fill(at[i], 0);
+    }
+  }
+  
+  @Override
+  void retain(int i, int[] kept, int count) {
+    float[] si = new float[count];
+    for (int c=0; c<count; c++) si[c] = s[i][kept[c]];
+    s[i] = si;
+    a[i] = new float[count];
+    r[i] = new float[count];
+  }
+  
+  @Override
+  void setS(int i, int j, double v) {
+    s[i][j] = (float) v;
+  }
+  
+  @Override
+  double getS(int i, int j) {
+    return s[i][j];
+  }
+  
+  @Override
+  double getA(int i, int j) {
+    return a[i][j];
+  }
+  
+  @Override
+  double getR(int i, int j) {
+    return r[i][j];
+  }
+  
+  @Override
+  double getRt(int kk, int p) {
+    return rt[kk][p];
+  }
+  
+  @Override
+  double getAt(int kk, int p) {
+    return at[kk][p];
+  }
+  
+  @Override
+  void calcMax(int i) {
+    int len = lengths[i];
+    float[] ai = a[i];
+    float[] si = s[i];
+    double m1 = Double.NEGATIVE_INFINITY;
+    double m2 = Double.NEGATIVE_INFINITY;
+    int jm = 0;
+    for (int j=0; j<len; j++) {
+      double t = (double) ai[j] + si[j];
+      if (t > m1) {
+        m2 = m1;
+        m1 = t;
+        jm = j;
+      }
+      else if (t >= m2) {
+        m2 = t;
+      }
+    }
+    max1 = m1;
+    max2 = m2;
+    jmax = jm;
+  }
+  
+  /** r(i,k) = s(i,k) - max over k' != k of a(i,k') + s(i,k'): max1 everywhere but at the maximum itself */
+  @Override
+  void updateRow(int i, double damp) {
+    double c = 1-damp;
+    int len = lengths[i];
+    float[] ri = r[i];
+    float[] si = s[i];
+    int[] ki = indices[i];
+    int[] tposi = tpos[i];
+    float[][] rcols = this.rcols;
+    float old = ri[jmax];
+    for (int j=0; j<len; j++) {
+      float rij = (float) (c * (si[j] - max1) + damp * ri[j]);
+      ri[j] = rij;
+      rcols[ki[j]][tposi[j]] = rij;
+    }
+    float rij = (float) (c * (si[jmax] - max2) + damp * old);
+    ri[jmax] = rij;
+    rcols[ki[jmax]][tposi[jmax]] = rij;
+  }
+  
+  @Override
+  double sumColumn(int kk) {
+    int len = colLengths[kk];
+    float[] rtk = rt[kk];
+    double sumk = 0;
+    for (int p=0; p<len; p++) {
+      sumk += Math.max(0, rtk[p]);
+    }
+    return sumk;
+  }
+  
+  /** a(i,k) = min(0, r(k,k) + sum of positive r(i',k) for i' != i,k), except for a(k,k) = sum of positive r(i',k) for i' != k */
+  @Override
+  void updateColumn(int kk, double rkk, double sumk, double damp) {
+    double c = 1-damp;
+    double maxkk = Math.max(0, rkk);
+    int len = colLengths[kk];
+    float[] rtk = rt[kk];
+    float[] atk = at[kk];
+    int[] rows = colIndices[kk];
+    int[] pos = colPos[kk];
+    float[][] arows = this.arows;
+    int pd = colDiag[kk];
+    float old = pd >= 0 ? atk[pd] : 0;
+    for (int p=0; p<len; p++) {
+      float aik = (float) (c * Math.min(0, rkk + (sumk - Math.max(0, rtk[p]) - maxkk)) + damp * atk[p]);
+      atk[p] = aik;
+      arows[rows[p]][pos[p]] = aik;
+    }
+    if (pd >= 0) {
+      float akk = (float) (c * (sumk - maxkk) + damp * old);
+      atk[pd] = akk;
+      arows[rows[pd]][pos[pd]] = akk;
+    }
+  }
+
+}
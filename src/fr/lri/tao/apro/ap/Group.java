@@ -1,24 +1,29 @@
 package fr.lri.tao.apro.ap;
 
+import cern.colt.matrix.DoubleMatrix2D;
+import java.util.Arrays;
 
-public class Group {
+
+/** A range of nodes [startIndex, endIndex) processed by one worker: the rows of the similarity matrix with these indices,
+ *  and the columns with the same indices. The layout of the similarities and messages is up to the subclasses */
+public abstract class Group {
 
   final int gid;
-  private final Apro apro;
+  final Apro apro;
   
   final int startIndex;
   final int endIndex;
   
   int n, size;
   
-  int[] lengths;
-  int[] t;
-  int[][] indices;
-  
-  double[] sums;
-  
-  double[][] s;
-  double[][] a;
+  /** Current exemplar decision, a(k, k) + r(k, k) > 0, for each owned column */
+  boolean[] exemplar;
+  /** Number of owned columns that are exemplars after the last availability phase */
+  int exemplarCount;
+  /** Number of owned columns whose exemplar decision changed in the last availability phase */
+  int changes;
+  /** Number of consecutive sweeps of an asynchronous run without any change of the exemplar decisions */
+  int stable;
   
   
   Group(Apro apro, int gid) {
@@ -28,16 +33,10 @@ public class Group {
     this.endIndex = apro.endIndex(gid);
         
     this.n = apro.getN();
-    sums = new double[n];
     this.size = endIndex-startIndex;
     
     
-    lengths = new int[size];
-    t = new int[size];
-    indices = new int[size][];
-    
-    s = new double[size][];    
-    a = new double[size][];
+    exemplar = new boolean[size];
   }
   
   public boolean containsNode(int nid) {
@@ -49,106 +48,86 @@ public class Group {
     return "Group " + gid + " [" + startIndex + ", " + endIndex + ")";
   }
   
-  double max1, max2;
-  int forK;
-  
-  
   public int getId() {
     return gid;
   }
   
-  private void calcMax(int i) {
-    max1 = max2 = Double.NEGATIVE_INFINITY;
-    for (int j=0; j<lengths[i]; j++) {
-      double t = a[i][j] + s[i][j];
-      if (t > max1) {
-        max2 = max1;
-        max1 = t;
-        forK = indices[i][j];
-      }
-      else if (t >= max2) {
-        max2 = t;
-      }
-    }
-  }
-  
-  private final double max(int k) {
-    if (k == forK) return max2;
-    else return max1;
-  }
- 
   int getNumaNode() {
     return apro.getNumaNode(gid);
   }
   
-  
-  void computeResponsibilities() {
-    double damp = apro.getDamping();    
-    for (int i=0; i<size; i++) {
-      int i1 = i+startIndex;
-      this.calcMax(i);
-      // System.out.println(String.format("%d, %f, %f", forK, max1, max2));
-      double temp;
-      for (int j=0; j<lengths[i]; j++) {
-        int k = indices[i][j];
-        temp = s[i][j] - max(k);
-        
-        double oldValue = Math.max(0, apro.r[i1][k]);        
-        apro.r[i1][k] = (1-damp) * temp + damp * apro.r[i1][k];
-        double newValue = Math.max(0, apro.r[i1][k]);
-        
-        sums[k] += newValue - oldValue;
-      }
+  /** Records the exemplar decision of the owned column kk in the current availability phase */
+  final void decide(int kk, boolean e) {
+    if (e != exemplar[kk]) {
+      exemplar[kk] = e;
+      changes++;
     }
-    
-    apro.updateSums(this);
+    if (e) exemplarCount++;
   }
-
-
-
   
-  private double sumR(int i, int k) {
-    if (i != k) return apro.sumr[k] - Math.max(0, apro.r[i][k]) - Math.max(0, apro.r[k][k]);
-    else return apro.sumr[k] - Math.max(0, apro.r[k][k]);
-  }
+  /** @return Number of stored elements in row i, relative to this group */
+  abstract int length(int i);
   
-  private double sumRBasic(int i, int k) {
-    double sum = 0;
-    for (int j=0; j<n; j++) {
-      if (j != i && j != k) sum += Math.max(0, apro.r[j][k]);
-    }
-    return sum;
-  }
+  /** @return Column index of the j-th stored element of row i, relative to this group */
+  abstract int column(int i, int j);
+  
+  abstract double getS(int i, int j);
+  
+  abstract double getA(int i, int j);
   
+  abstract double getR(int i, int j);
   
-  void computeAvailabilities() {
-    double damp = apro.getDamping();
-    double temp;
+  /** Finds the exemplar of each row of this group, argmax over k of a(i,k) + r(i,k)
+   * @param exemplars Array of exemplars of all the nodes, filled in for the rows of this group */
+  void getExemplars(int[] exemplars) {
     for (int i=0; i<size; i++) {
-      int len = lengths[i];
+      int e = -1;
+      double max = Double.NEGATIVE_INFINITY;
+      int len = length(i);
       for (int j=0; j<len; j++) {
-        int k = indices[i][j];
-        if (i+startIndex != k) {
-          //!!double t = apro.r.get(k, k) + sumR3(i+startIndex, k);
-          double t = apro.r[k][k] + sumR(i+startIndex, k);
-          temp = Math.min(0, t);
+        double v = getA(i, j) + getR(i, j);
+        if (v > max) {
+          max = v;
+          e = column(i, j);
         }
-        else {
-          temp = sumR(k, k);
-        }
-        a[i][j] = (1-damp) * temp + damp * a[i][j];
-        // System.out.println(String.format("a[%d][%d] = %f", i, j, a[i][j]));
       }
+      exemplars[i+startIndex] = e;
     }
   }
-
-
+  
+  /** @return Number of elements stored in the rows and the owned columns of this group, the work of one iteration */
+  abstract long elements();
+  
+  /** Copies new values of the stored elements from the similarity matrix, keeping the layout
+   * @return Number of stored elements with a non-zero value */
+  abstract long update(DoubleMatrix2D matrix);
+  
+  /** Sets the preferences, the diagonal similarities s(k, k), of the rows of this group
+   * @param preferences Preferences of all the nodes
+   * @return Number of rows without a stored diagonal element, whose preference was not set */
+  abstract int updatePreferences(double[] preferences);
+  
+  /** Clears the messages and the exemplar decisions, for a run from scratch */
+  void resetMessages() {
+    Arrays.fill(exemplar, false);
+    exemplarCount = 0;
+    changes = 0;
+    stable = 0;
+  }
+  
+  /** Computes the responsibilities then the availabilities of this group on its own, for an asynchronous run. 
+   *  The messages of the other groups are read as last published, possibly while they are being updated */
+  final void sweep() {
+    computeResponsibilities();
+    computeAvailabilities();
+    if (changes == 0) stable++;
+    else stable = 0;
+  }
+  
+  /** Updates the responsibilities of the rows of this group, and publishes them to the column owners */
+  abstract void computeResponsibilities();
+  
+  /** Updates the availabilities of the columns owned by this group, and publishes them to the row owners */
+  abstract void computeAvailabilities();
   
 }
-
-
-
-
-
-
-
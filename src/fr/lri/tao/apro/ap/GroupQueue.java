@@ -0,0 +1,83 @@
+package fr.lri.tao.apro.ap;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Distributes the groups among the worker threads in each phase. Each thread has a home range of consecutive groups,
+ *  allocated on its own node, which it claims first through its own cursor. When stealing is on, a thread
+ *  that is done with its home range claims the remaining groups of the other threads, starting from its neighbours,
+ *  which run on the same node. A phase then ends when the last group is done, not when the slowest thread is */
+class GroupQueue {
+
+  private final List<Group> groups;
+  private final int threads;
+  private boolean steal;
+
+  /** Home range of each thread, [from, to) */
+  private final int[] from;
+  private final int[] to;
+  private final AtomicInteger[] cursors;
+
+
+  GroupQueue(List<Group> groups, int threads, boolean steal) {
+    this.groups = groups;
+    this.threads = threads;
+    this.steal = steal;
+    this.from = new int[threads];
+    this.to = new int[threads];
+    this.cursors = new AtomicInteger[threads];
+    int count = groups.size();
+    for (int t=0; t<threads; t++) {
+      from[t] = (int) ((long) count * t / threads);
+      to[t] = (int) ((long) count * (t+1) / threads);
+      cursors[t] = new AtomicInteger(to[t]);
+    }
+  }
+
+  /** @return Thread whose home range holds the group, the inverse of the home ranges */
+  static int thread(int gid, int count, int threads) {
+    return (int) (((long) gid * threads + threads - 1) / count);
+  }
+
+  /** @return Id of the first group in the home range of the thread */
+  int first(int thread) {
+    return from[thread];
+  }
+
+  /** @return Groups in the home range of the thread */
+  List<Group> home(int thread) {
+    return groups.subList(from[thread], to[thread]);
+  }
+
+  /** Let the threads take over the groups of the other threads once done with their own, or keep them to their home range */
+  void setSteal(boolean steal) {
+    this.steal = steal;
+  }
+
+  /** Makes all the groups available again, called before each phase */
+  void reset() {
+    for (int t=0; t<threads; t++) {
+      cursors[t].set(from[t]);
+    }
+  }
+
+  /** @return Next group for the thread to process in this phase, null when there is none left */
+  Group next(int thread) {
+    Group group = claim(thread);
+    if (group != null || !steal) return group;
+    for (int d=1; d<threads; d++) {
+      group = claim((thread + d) % threads);
+      if (group != null) return group;
+    }
+    return null;
+  }
+
+  private Group claim(int thread) {
+    AtomicInteger cursor = cursors[thread];
+    if (cursor.get() >= to[thread]) return null;
+    int gid = cursor.getAndIncrement();
+    if (gid >= to[thread]) return null;
+    return groups.get(gid);
+  }
+
+}
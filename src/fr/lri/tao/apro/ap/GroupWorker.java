@@ -1,89 +1,42 @@
 package fr.lri.tao.apro.ap;
 
 import fr.lri.tao.numa.NUMA;
+import java.util.concurrent.CountDownLatch;
 
 
-public class GroupWorker extends Thread {
-  
+/** Share of one borrowed thread in a task of a PhaseExecutor. The thread is pinned to the node of its home range
+ *  for the duration of the task. An exception of the task is handed to the executor, which throws it on the calling thread */
+public class GroupWorker implements Runnable {
 
-  public static enum Mode {
-    RESPONSIBILITIES,
-    AVAILABILITIES
-  }
-  
-  
-  private final Group group;
-  private final boolean useNuma;
-  private Mode mode;
-  private Mode todo;
-  
-  private boolean go = false;
-  private boolean done = false;
-  private boolean busy = false;
-  
-  GroupWorker(Group group, boolean useNuma) {
-    this.group = group;
-    this.mode = null;
-    this.useNuma = useNuma;
+  private final PhaseExecutor executor;
+  private final int id;
+  private final Integer node;
+  private final CountDownLatch exits;
+
+  /** @param executor Executor of the task
+   *  @param id Index of this worker, its home range in the group queue
+   *  @param node NUMA node to run on, null to leave it to the OS
+   *  @param exits Counted down when this worker is done with its round */
+  GroupWorker(PhaseExecutor executor, int id, Integer node, CountDownLatch exits) {
+    this.executor = executor;
+    this.id = id;
+    this.node = node;
+    this.exits = exits;
   }
-  
+
   @Override
   public void run() {
-    if (useNuma) {
-      int node = group.getNumaNode();
-      NUMA.runOnNode(node);
+    try {
+      if (node != null) NUMA.runOnNode(node);
+      executor.work(id);
     }
-    
-    while (!done) {
-      
-      synchronized (this) {
-        try { while (!go && !done) this.wait(); }
-        catch (InterruptedException e) {}
-        if (done) break;
-        go = false;
-        todo = mode;
-        busy = true;
-      }
-      
-      if (todo == Mode.RESPONSIBILITIES) group.computeResponsibilities();
-      else if (todo == Mode.AVAILABILITIES) group.computeAvailabilities();
-      
-      synchronized (this) {
-        busy = false;
-        this.notify();
-      }
-      
+    catch (Throwable e) {
+      executor.fail(e);
+    }
+    finally {
+      if (node != null) NUMA.runOnAllNodes();
+      exits.countDown();
     }
-    
-  }   
-  
-  /** Do one cycle of responsibilities calculation, then wait */
-  public void responsibilities() {
-    go(GroupWorker.Mode.RESPONSIBILITIES);
-  }
-  
-  /** Do one cycle of availabilities calculation, then wait */
-  public void availabilities() {
-    go(GroupWorker.Mode.AVAILABILITIES);
-  }
-  
-  private synchronized void go(Mode mode) {
-    waitTask();
-    this.go = true;
-    this.mode = mode;
-    busy = true;
-    this.notify();
-  }
-  
-  /** Block until the worker has finished a running cycle */
-  public synchronized void waitTask() {
-    try { while (busy) this.wait(); }
-    catch (InterruptedException e) {}
-  }
-  
-  /** Finish the thread */
-  public synchronized void done() {
-    this.done = true;
-    this.notify();
   }
+
 }
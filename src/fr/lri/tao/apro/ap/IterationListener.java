@@ -0,0 +1,15 @@
+package fr.lri.tao.apro.ap;
+
+/** Listener of the progress of a run, see Apro.setIterationListener(). It is called by the last worker finishing 
+ *  an iteration, while the others wait at the barrier, so it should return quickly. A listener that throws 
+ *  cancels the run, and its exception is thrown again by run() once the workers have stopped */
+public interface IterationListener {
+
+  /** Called after every stride iterations
+   * @param apro Running instance, see Apro.snapshotExemplars() for the current exemplars, or cancel the run through its token
+   * @param iteration Number of iterations done so far in this run
+   * @param exemplars Number of nodes currently deciding to be exemplars
+   * @param changes Number of exemplar decisions changed in the last iteration */
+  public void iterated(Apro apro, int iteration, int exemplars, int changes);
+
+}
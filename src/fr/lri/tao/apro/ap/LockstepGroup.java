@@ -0,0 +1,373 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import fr.lri.tao.apro.util.Utils;
+import java.util.Arrays;
+import java.util.List;
+
+/** Group running several configurations side by side, in double precision. The sparsity pattern, the similarities
+ *  and the index arrays are stored once. The messages of a row (column) hold the row of each configuration
+ *  one after the other: element j of configuration q is at q*len+j. The configurations go over a row (column) 
+ *  one after the other while it is in the cache, so the pattern and the similarities are read from memory once
+ *  for all of them.
+ *  <p>
+ *  The preferences of each configuration are stored apart, and its noise is added to the similarities of a row
+ *  as the row is processed. Each configuration gives the same messages as a run of its own with the same settings */
+class LockstepGroup extends SparseGroup {
+
+  /** Number of configurations */
+  final int m;
+  private final Double[] dampings;
+  private final Double[] preferences;
+  /** Seed of the noise of each configuration, null for a configuration without noise; the array is null if none of them adds noise */
+  private final Long[] seeds;
+
+  double[][] s;
+  double[][] a;
+  double[][] r;
+  double[][] rt;
+  double[][] at;
+  /** Diagonal similarity of each row for each configuration, its preference with its noise */
+  double[] pref;
+  /** Exemplar decision of each owned column for each configuration */
+  boolean[] exemplars;
+
+  /** Columns of the transposed responsibilities and rows of the availabilities, shared by all the groups */
+  double[][] rcols;
+  double[][] arows;
+  /** Diagonal of the responsibilities of all the nodes for each configuration, shared by all the groups */
+  double[] rdiag;
+  /** Number of stored elements in the row and in the column of each node, the stride of the configurations 
+   *  in the published arrays, shared by all the groups */
+  int[] rowStride, colStride;
+
+  /** Scratch row of the similarities with the noise of one configuration */
+  private double[] row;
+  private final double[] damp, c;
+
+
+  LockstepGroup(Apro apro, int gid) {
+    super(apro, gid);
+    List<Configuration> configurations = apro.getConfigurations();
+    m = configurations.size();
+    dampings = new Double[m];
+    preferences = new Double[m];
+    Long[] seeds = new Long[m];
+    boolean noise = false;
+    for (int q=0; q<m; q++) {
+      Configuration configuration = configurations.get(q);
+      dampings[q] = configuration.getDamping();
+      preferences[q] = configuration.getPreference();
+      seeds[q] = configuration.getNoiseSeed();
+      if (seeds[q] != null) noise = true;
+    }
+    this.seeds = noise ? seeds : null;
+
+    s = new double[size][];
+    a = new double[size][];
+    r = new double[size][];
+    rt = new double[size][];
+    at = new double[size][];
+    pref = new double[size*m];
+    exemplars = new boolean[size*m];
+
+    damp = new double[m];
+    c = new double[m];
+  }
+
+  /** Builds the tables through which the groups publish their messages to each other, and sets the preferences
+   *  of the configurations, once all the rows are loaded */
+  static void link(List<Group> groups, int n) {
+    int m = ((LockstepGroup) groups.get(0)).m;
+    double[][] rcols = new double[n][];
+    double[][] arows = new double[n][];
+    double[] rdiag = new double[n*m];
+    int[] rowStride = new int[n];
+    int[] colStride = new int[n];
+    for (Group g: groups) {
+      LockstepGroup group = (LockstepGroup) g;
+      for (int i=0; i<group.size; i++) {
+        arows[i+group.startIndex] = group.a[i];
+        rcols[i+group.startIndex] = group.rt[i];
+        rowStride[i+group.startIndex] = group.lengths[i];
+        colStride[i+group.startIndex] = group.colLengths[i];
+      }
+    }
+    for (Group g: groups) {
+      LockstepGroup group = (LockstepGroup) g;
+      group.rcols = rcols;
+      group.arows = arows;
+      group.rdiag = rdiag;
+      group.rowStride = rowStride;
+      group.colStride = colStride;
+      group.setPreferences(null);
+    }
+  }
+
+  @Override
+  void allocateRows() {
+    super.allocateRows();
+    int longest = 0;
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      s[i] = new double[len];
+      a[i] = new double[len*m];
+      r[i] = new double[len*m];
+      longest = Math.max(longest, len);
+    }
+    row = new double[longest];
+  }
+
+  @Override
+  void allocateColumns() {
+    super.allocateColumns();
+    for (int kk=0; kk<size; kk++) {
+      int len = colLengths[kk];
+      rt[kk] = new double[len*m];
+      at[kk] = new double[len*m];
+    }
+  }
+
+  /** Sets the diagonal similarity of each row for each configuration, with the noise of the configuration
+   * @param values Preferences of all the nodes for all the configurations, null for the preference of each
+   *        configuration or else the diagonal of the similarities */
+  private void setPreferences(double[] values) {
+    for (int i=0; i<size; i++) {
+      if (diag[i] < 0) continue;
+      int node = i+startIndex;
+      for (int q=0; q<m; q++) {
+        double v = values != null ? values[node] : preferences[q] != null ? preferences[q] : s[i][diag[i]];
+        pref[i*m+q] = seeds != null && seeds[q] != null ? Utils.noise(v, seeds[q], node, node) : v;
+      }
+    }
+  }
+
+  /** Similarities of row i for configuration q, with its preference and its noise
+   * @return the row of the similarities itself, its diagonal set to the preference, when the configuration adds no noise; 
+   *         else the scratch row filled in */
+  private double[] similarities(int i, int q) {
+    double[] si = s[i];
+    int d = diag[i];
+    if (seeds == null || seeds[q] == null) {
+      if (d >= 0) si[d] = pref[i*m+q];
+      return si;
+    }
+    int len = lengths[i];
+    int node = i+startIndex;
+    int[] ki = indices[i];
+    double[] sq = row;
+    long seed = seeds[q];
+    for (int j=0; j<len; j++) {
+      sq[j] = Utils.noise(si[j], seed, node, ki[j]);
+    }
+    if (d >= 0) sq[d] = pref[i*m+q];
+    return sq;
+  }
+
+  private void setDamping() {
+    for (int q=0; q<m; q++) {
+      damp[q] = dampings[q] != null ? dampings[q] : apro.getCurrentDamping();
+      c[q] = 1-damp[q];
+    }
+  }
+
+  @Override
+  void resetMessages() {
+    super.resetMessages();
+    for (int i=0; i<size; i++) {
+      Arrays.fill(a[i], 0);
+      Arrays.fill(r[i], 0);
+      Arrays.fill(rt[i], 0);
+      Arrays.fill(at[i], 0);
+    }
+    Arrays.fill(exemplars, false);
+  }
+
+  @Override
+  long update(DoubleMatrix2D matrix) {
+    long nonZeros = super.update(matrix);
+    setPreferences(null);
+    return nonZeros;
+  }
+
+  /** The preferences are set for all the configurations, in place of their own */
+  @Override
+  int updatePreferences(double[] preferences) {
+    int missing = super.updatePreferences(preferences);
+    setPreferences(preferences);
+    return missing;
+  }
+
+  @Override
+  void retain(int i, int[] kept, int count) {
+    double[] si = new double[count];
+    for (int c=0; c<count; c++) si[c] = s[i][kept[c]];
+    s[i] = si;
+    a[i] = new double[count*m];
+    r[i] = new double[count*m];
+  }
+
+  @Override
+  void setS(int i, int j, double v) {
+    s[i][j] = v;
+  }
+
+  @Override
+  double getS(int i, int j) {
+    return s[i][j];
+  }
+
+  /** @return Availability of the first configuration */
+  @Override
+  double getA(int i, int j) {
+    return a[i][j];
+  }
+
+  /** @return Responsibility of the first configuration */
+  @Override
+  double getR(int i, int j) {
+    return r[i][j];
+  }
+
+  /** Finds the exemplar of each row of this group for one configuration, argmax over k of a(i,k) + r(i,k)
+   * @param q Configuration
+   * @param exemplars Array of exemplars of all the nodes, filled in for the rows of this group */
+  void getExemplars(int q, int[] exemplars) {
+    for (int i=0; i<size; i++) {
+      int e = -1;
+      double max = Double.NEGATIVE_INFINITY;
+      int len = lengths[i];
+      double[] ai = a[i];
+      double[] ri = r[i];
+      for (int j=0; j<len; j++) {
+        double v = ai[q*len+j] + ri[q*len+j];
+        if (v > max) {
+          max = v;
+          e = indices[i][j];
+        }
+      }
+      exemplars[i+startIndex] = e;
+    }
+  }
+
+  /** Updates the responsibilities of the rows for all the configurations, one row at a time: the configurations
+   *  go over the row one after the other while it is in the cache, each one with the strides of the interleaved messages */
+  @Override
+  void computeResponsibilities() {
+    setDamping();
+    double[] rdiag = this.rdiag;
+    double[][] rcols = this.rcols;
+    int[] colStride = this.colStride;
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      if (len == 0) continue;
+      updatedRows++;
+      double[] ai = a[i];
+      double[] ri = r[i];
+      int[] ki = indices[i];
+      int[] tposi = tpos[i];
+      int d = diag[i];
+      double sd = d >= 0 ? s[i][d] : 0;
+      
+      for (int q=0; q<m; q++) {
+        double[] sq = similarities(i, q);
+        double dq = damp[q];
+        double cq = c[q];
+        int off = q*len;
+        
+        // largest and second largest a(i,k) + s(i,k) of the row
+        double max1 = Double.NEGATIVE_INFINITY;
+        double max2 = Double.NEGATIVE_INFINITY;
+        int jmax = 0;
+        for (int j=0; j<len; j++) {
+          double t = ai[off+j] + sq[j];
+          if (t > max1) {
+            max2 = max1;
+            max1 = t;
+            jmax = j;
+          }
+          else if (t >= max2) {
+            max2 = t;
+          }
+        }
+        
+        // r(i,k) = s(i,k) - max over k' != k of a(i,k') + s(i,k'): max1 everywhere but at the maximum itself
+        double old = ri[off+jmax];
+        for (int j=0; j<len; j++) {
+          double rij = cq * (sq[j] - max1) + dq * ri[off+j];
+          ri[off+j] = rij;
+          int k = ki[j];
+          rcols[k][q*colStride[k]+tposi[j]] = rij;
+        }
+        double rij = cq * (sq[jmax] - max2) + dq * old;
+        ri[off+jmax] = rij;
+        int k = ki[jmax];
+        rcols[k][q*colStride[k]+tposi[jmax]] = rij;
+      }
+      if (d >= 0) {
+        s[i][d] = sd;
+        for (int q=0; q<m; q++) rdiag[(i+startIndex)*m+q] = ri[q*len+d];
+      }
+    }
+  }
+
+  /** Computes the availabilities of the owned columns for all the configurations, one column at a time,
+   *  see MessageGroup.computeAvailabilities() */
+  @Override
+  void computeAvailabilities() {
+    setDamping();
+    double[] rdiag = this.rdiag;
+    double[][] arows = this.arows;
+    int[] rowStride = this.rowStride;
+    exemplarCount = 0;
+    changes = 0;
+    for (int kk=0; kk<size; kk++) {
+      int k = kk+startIndex;
+      updatedColumns++;
+      int len = colLengths[kk];
+      double[] rtk = rt[kk];
+      double[] atk = at[kk];
+      int[] rows = colIndices[kk];
+      int[] pos = colPos[kk];
+      int pd = colDiag[kk];
+      
+      for (int q=0; q<m; q++) {
+        double dq = damp[q];
+        double cq = c[q];
+        double rkk = rdiag[k*m+q];
+        double maxkk = Math.max(0, rkk);
+        int off = q*len;
+        
+        double sumk = 0;
+        for (int p=0; p<len; p++) {
+          sumk += Math.max(0, rtk[off+p]);
+        }
+        
+        // a(i,k) = min(0, r(k,k) + sum of positive r(i',k) for i' != i,k), except for a(k,k) = sum of positive r(i',k) for i' != k
+        double old = pd >= 0 ? atk[off+pd] : 0;
+        for (int p=0; p<len; p++) {
+          double aik = cq * Math.min(0, rkk + (sumk - Math.max(0, rtk[off+p]) - maxkk)) + dq * atk[off+p];
+          atk[off+p] = aik;
+          int i = rows[p];
+          arows[i][q*rowStride[i]+pos[p]] = aik;
+        }
+        if (pd >= 0) {
+          double akk = cq * (sumk - maxkk) + dq * old;
+          atk[off+pd] = akk;
+          arows[k][q*rowStride[k]+pos[pd]] = akk;
+          decideConfiguration(kk*m+q, akk + rkk > 0);
+        }
+      }
+    }
+  }
+
+  /** Records the exemplar decision of one configuration of an owned column, counted over all the configurations */
+  private void decideConfiguration(int index, boolean e) {
+    if (e != exemplars[index]) {
+      exemplars[index] = e;
+      changes++;
+    }
+    if (e) exemplarCount++;
+  }
+
+}
@@ -0,0 +1,215 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import java.util.Arrays;
+
+/** Sparse group running the messages of a single configuration. The kernels are written once here: the loops over 
+ *  the rows and the columns, the selective updates, the diagonal and the exemplar decisions. The subclasses store 
+ *  the similarities and the messages, DoubleGroup in double precision and FloatGroup in single precision, and only 
+ *  run the loops over the elements of one row or one column on their own arrays. A call per element through accessors 
+ *  shared by both precisions ran twice as slow once both were used in the same JVM, so the element loops stay 
+ *  in the subclasses; the arithmetic is done in double in both */
+abstract class MessageGroup extends SparseGroup {
+
+  /** Estimate of the largest change of the responsibilities of each row at its last update, for the selective updates */
+  double[] rowResidual;
+  /** Estimate of the largest change of the availabilities of each owned column at its last update */
+  double[] colResidual;
+  /** Largest and second largest a(i,k) + s(i,k) of each row at its last update, and the position of the largest, 
+   *  -1 when the next change of the row is to be computed element by element */
+  double[] rowMax1, rowMax2;
+  int[] rowJmax;
+  /** r(k,k) and the sum of the positive responsibilities of each owned column at its last update, 
+   *  NaN when the next change of the column is to be computed element by element */
+  double[] colR, colSum;
+  
+  /** Largest and second largest a(i,k) + s(i,k) of the current row, and the position of the largest */
+  double max1, max2;
+  int jmax;
+  
+  
+  MessageGroup(Apro apro, int gid) {
+    super(apro, gid);
+    rowResidual = new double[size];
+    colResidual = new double[size];
+    rowMax1 = new double[size];
+    rowMax2 = new double[size];
+    rowJmax = new int[size];
+    colR = new double[size];
+    colSum = new double[size];
+    forgetChanges();
+  }
+  
+  /** @return Responsibility p of owned column kk, as published by the owner of its row */
+  abstract double getRt(int kk, int p);
+  
+  /** @return Availability p of owned column kk */
+  abstract double getAt(int kk, int p);
+  
+  /** Finds the largest and second largest a(i,k) + s(i,k) of row i, and the position of the largest, into max1, max2 and jmax */
+  abstract void calcMax(int i);
+  
+  /** Updates the responsibilities of row i from max1, max2 and jmax, and publishes them to the owners of their columns */
+  abstract void updateRow(int i, double damp);
+  
+  /** @return Sum of the positive responsibilities of owned column kk */
+  abstract double sumColumn(int kk);
+  
+  /** Updates the availabilities of owned column kk, and publishes them to the owners of their rows
+   * @param rkk r(k,k) of the column
+   * @param sumk Sum of its positive responsibilities */
+  abstract void updateColumn(int kk, double rkk, double sumk, double damp);
+  
+  @Override
+  void resetMessages() {
+    super.resetMessages();
+    forgetChanges();
+  }
+  
+  /** Drops the maxima and sums kept for the estimates of the selective updates, when the messages or the similarities 
+   *  are changed from outside the iterations: the next update of each row and column computes its change element by element */
+  void forgetChanges() {
+    Arrays.fill(rowJmax, -1);
+    Arrays.fill(colSum, Double.NaN);
+  }
+  
+  /** With selective updates, tells whether the update of row i can be skipped, from an estimate of the largest change 
+   *  of its responsibilities taken without a pass over the row. r(i,k) moves towards s(i,k) minus the largest 
+   *  a(i,k') + s(i,k') of the others by 1-damp of the distance left: when this maximum is the same as at the last update 
+   *  of the row, every element moves damp times as much as then, and a shift of the maximum adds 1-damp times the shift. 
+   *  The estimate bounds the change under a constant damping, over the skipped iterations as well, since the row does not move then. 
+   *  The first update of a row measures its distance element by element. The maxima and the estimate are kept 
+   *  when the row is updated
+   * @param max1 Largest a(i,k) + s(i,k) of the row
+   * @param max2 Second largest
+   * @param jmax Position of the largest
+   * @param full true to update the row whatever the estimate
+   * @return true to skip the update of the row */
+  boolean skipRow(int i, double max1, double max2, int jmax, double damp, double epsilon, boolean full) {
+    double c = 1-damp;
+    double change;
+    if (rowJmax[i] < 0) change = c * rowDistance(i, max1, max2, jmax);
+    else {
+      double shift = Math.max(Math.abs(max1 - rowMax1[i]), Math.abs(max2 - rowMax2[i]));
+      if (jmax != rowJmax[i]) shift = Math.max(shift, Math.max(Math.abs(max1 - rowMax2[i]), Math.abs(max2 - rowMax1[i])));
+      change = damp * rowResidual[i] + c * shift;
+    }
+    if (!full && change < epsilon) return true;
+    rowResidual[i] = change;
+    rowMax1[i] = max1;
+    rowMax2[i] = max2;
+    rowJmax[i] = jmax;
+    return false;
+  }
+  
+  /** With selective updates, tells whether the update of owned column kk can be skipped, estimated as for the rows: 
+   *  the shift of the target of each a(i,k) is taken as the shift of r(k,k) plus the shift of the sum of the positive 
+   *  responsibilities of the column. Changes of single responsibilities that cancel out in the sum are missed 
+   *  until the next full sweep. r(k,k), the sum and the estimate are kept when the column is updated
+   * @param rkk r(k,k) of the column
+   * @param sumk Sum of the positive responsibilities of the column
+   * @param full true to update the column whatever the estimate
+   * @return true to skip the update of the column */
+  boolean skipColumn(int kk, double rkk, double sumk, double damp, double epsilon, boolean full) {
+    double c = 1-damp;
+    double change;
+    if (Double.isNaN(colSum[kk])) change = c * columnDistance(kk, rkk, sumk);
+    else change = damp * colResidual[kk] + c * (Math.abs(rkk - colR[kk]) + Math.abs(sumk - colSum[kk]));
+    if (!full && change < epsilon) return true;
+    colResidual[kk] = change;
+    colR[kk] = rkk;
+    colSum[kk] = sumk;
+    return false;
+  }
+  
+  @Override
+  long update(DoubleMatrix2D matrix) {
+    long nonZeros = super.update(matrix);
+    forgetChanges();
+    return nonZeros;
+  }
+  
+  @Override
+  int updatePreferences(double[] preferences) {
+    int missing = super.updatePreferences(preferences);
+    forgetChanges();
+    return missing;
+  }
+  
+  /** @return Largest distance between the responsibilities of row i and their targets for the given maxima, 
+   *  element by element, for the first estimate of the row */
+  private double rowDistance(int i, double max1, double max2, int jmax) {
+    int len = lengths[i];
+    double distance = 0;
+    for (int j=0; j<len; j++) {
+      distance = Math.max(distance, Math.abs(getS(i, j) - (j == jmax ? max2 : max1) - getR(i, j)));
+    }
+    return distance;
+  }
+  
+  /** @return Largest distance between the availabilities of owned column kk and their targets, element by element, 
+   *  for the first estimate of the column */
+  private double columnDistance(int kk, double rkk, double sumk) {
+    double maxkk = Math.max(0, rkk);
+    int len = colLengths[kk];
+    int pd = colDiag[kk];
+    double distance = 0;
+    for (int p=0; p<len; p++) {
+      double target = p == pd ? sumk - maxkk : Math.min(0, rkk + (sumk - Math.max(0, getRt(kk, p)) - maxkk));
+      distance = Math.max(distance, Math.abs(target - getAt(kk, p)));
+    }
+    return distance;
+  }
+  
+  
+  @Override
+  void computeResponsibilities() {
+    double damp = apro.getCurrentDamping();    
+    double[] rdiag = apro.rdiag;
+    double epsilon = apro.getSelectiveEpsilon();
+    boolean selective = epsilon > 0;
+    boolean full = apro.isFullSweep();
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      if (len == 0) continue;
+      this.calcMax(i);
+      if (selective && skipRow(i, max1, max2, jmax, damp, epsilon, full)) continue;
+      updatedRows++;
+      this.updateRow(i, damp);
+      if (diag[i] >= 0) rdiag[i+startIndex] = getR(i, diag[i]);
+    }
+  }
+
+  
+  /** Computes the availabilities of the owned columns. Everything read here (the transposed 
+   * responsibilities and the diagonal) is local to the column owner; 
+   * the new values are then published to the row-major arrays of the row owners.
+   * The column sums of positive responsibilities are reduced here as well: each group sums 
+   * the stripe of columns it owns over all the rows, so no locking is needed */
+  @Override
+  void computeAvailabilities() {
+    double damp = apro.getCurrentDamping();
+    double[] rdiag = apro.rdiag;
+    double[] sumr = apro.sumr;
+    double epsilon = apro.getSelectiveEpsilon();
+    boolean selective = epsilon > 0;
+    boolean full = apro.isFullSweep();
+    exemplarCount = 0;
+    changes = 0;
+    for (int kk=0; kk<size; kk++) {
+      int k = kk+startIndex;
+      double rkk = rdiag[k];
+      double sumk = this.sumColumn(kk);
+      sumr[k] = sumk;
+      if (selective && skipColumn(kk, rkk, sumk, damp, epsilon, full)) {
+        if (exemplar[kk]) exemplarCount++;
+        continue;
+      }
+      updatedColumns++;
+      this.updateColumn(kk, rkk, sumk, damp);
+      int pd = colDiag[kk];
+      if (pd >= 0) decide(kk, getAt(kk, pd) + rkk > 0);
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package fr.lri.tao.apro.ap;
+
+import fr.lri.tao.apro.data.DataProvider;
+import fr.lri.tao.apro.data.MatrixProvider;
+import java.util.Random;
+
+/** Measures the synchronisation overhead per iteration for increasing numbers of groups, on a problem small enough
+ *  that the computation itself is negligible */
+public class OverheadBenchmark {
+
+  private final DataProvider provider;
+  private final int iters;
+
+
+  /** @param n Number of random points to cluster
+   *  @param iters Number of iterations measured for each group count, at least 1 */
+  public OverheadBenchmark(int n, int iters) {
+    if (n < 1) throw new IllegalArgumentException("At least one point required");
+    if (iters < 1) throw new IllegalArgumentException("At least one iteration required");
+    Random random = new Random(n);
+    double[][] x = new double[n][2];
+    for (int i=0; i<n; i++) {
+      x[i][0] = random.nextGaussian();
+      x[i][1] = random.nextGaussian();
+    }
+    double[][] s = new double[n][n];
+    for (int i=0; i<n; i++) {
+      for (int k=0; k<n; k++) {
+        double dx = x[i][0] - x[k][0];
+        double dy = x[i][1] - x[k][1];
+        s[i][k] = i == k ? -1 : -(dx*dx + dy*dy);
+      }
+    }
+    this.provider = new MatrixProvider(s);
+    this.iters = iters;
+  }
+
+  /** @return Time per iteration in microseconds, with the given number of groups (threads), 
+   *          always on the worker threads however small the problem */
+  public double measure(int groups) {
+    Apro apro = new AproBuilder().setThreads(groups).setInlineThreshold(0).setDebug(false).build(provider);
+    apro.run(Math.max(1, iters / 10));  // warm up
+    apro = new AproBuilder().setThreads(groups).setInlineThreshold(0).setDebug(false).build(provider);
+    apro.run(iters);
+    if (apro.getIterations() == 0) throw new IllegalStateException("No iteration ran with " + groups + " groups");
+    return 1000d * apro.getRunTime() / apro.getIterations();
+  }
+
+  /** Prints the time per iteration for 1, 2, 4, ..., 128 groups. Usage: [n] [iters], 256 points and 2000 iterations by default */
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int iters = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    if (n < 1 || iters < 1) {
+      System.err.println("Usage: OverheadBenchmark [n >= 1] [iters >= 1]");
+      System.exit(1);
+    }
+    OverheadBenchmark benchmark = new OverheadBenchmark(n, iters);
+    System.out.println(String.format("%d points, %d iterations, %d cores", n, iters, Runtime.getRuntime().availableProcessors()));
+    for (int groups=1; groups<=128 && groups<=n; groups*=2) {
+      System.out.println(String.format("Groups: %3d  %10.1f us / iteration", groups, benchmark.measure(groups)));
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package fr.lri.tao.apro.ap;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/** Runs the tasks of the engine on threads borrowed from the compute pool, synchronised by a Phaser, which spins briefly
+ *  before parking. The calling thread takes part in the work as worker 0, and counts against the budget of the pool.
+ *  The last thread arriving at a barrier resets the group queue and, at the end of an iteration, lets the engine
+ *  decide whether to go on, so the workers run the iterations back to back: two barriers per iteration,
+ *  instead of a wake-up and a notification per worker and phase. The iterations of a round stop by terminating
+ *  its phaser, so a worker late to leave a round never sees the decisions of the next one.
+ *  <p>
+ *  A task runs on as many threads as the pool grants, up to one per home range. The home ranges left without
+ *  a thread are taken over by the others. When the share of the job in the pool changes, the iterations pause
+ *  at the end of an iteration, the cores are given back and reserved again, and the iterations go on.
+ *  <p>
+ *  Without a pool, the tasks run inline on the calling thread alone, with no barrier nor worker thread, 
+ *  and outside of any budget of cores.
+ *  <p>
+ *  In an asynchronous run there is no barrier between the phases: each thread sweeps the groups of its home ranges,
+ *  responsibilities then availabilities, as often as it can, reading the messages of the other groups as last published.
+ *  The engine is told of an iteration once every home range has done one more sweep.
+ *  <p>
+ *  An exception thrown by any of the threads terminates the phaser of the round, so that the others leave their barriers,
+ *  and is thrown again by execute() on the calling thread once the borrowed threads are done and their cores given back */
+class PhaseExecutor {
+
+  static enum Task {
+    /** Load the rows of the home groups, scattered from the slices of a sparse matrix if it has a hash table, prune them if asked, then build their column layout */
+    LAYOUT,
+    /** Apply the pending updates of the engine to the home groups */
+    UPDATE,
+    /** Iterations of responsibilities and availabilities, until the engine stops them */
+    ITERATIONS,
+    /** Iterations without barriers: each thread sweeps its home ranges over and over, on the messages last published by the others */
+    ASYNC_ITERATIONS
+  }
+
+  private final Apro apro;
+  private final GroupQueue queue;
+  private final ComputePool pool;
+  /** Number of home ranges, the most threads a task can use */
+  private final int threads;
+  private final boolean useNuma;
+  private final boolean chunked;
+
+  /** Barrier of the current round, with one party per active thread */
+  private volatile Phaser phaser;
+  /** Number of threads of the current round, the calling thread included */
+  private volatile int active;
+  private volatile Task task;
+  /** Set by the workers done with the availabilities, so that the barrier knows it ends an iteration */
+  private volatile boolean ending;
+  /** Set at the end of an iteration when the cores should be reserved again */
+  private volatile boolean rebalance;
+  
+  /** Number of sweeps done by each home range in an asynchronous run */
+  private AtomicIntegerArray sweeps;
+  /** Iterations of an asynchronous run reported to the engine: the sweeps done by all the home ranges */
+  private volatile int swept;
+  /** Set when the asynchronous sweeps should stop, the run being over or the cores to be reserved again */
+  private volatile boolean halted;
+  /** First exception thrown by a thread of the current task */
+  private volatile Throwable failure;
+
+
+  /** @param pool Pool to borrow the threads from, null to run the tasks inline on the calling thread */
+  PhaseExecutor(Apro apro, GroupQueue queue, ComputePool pool, int threads, boolean useNuma, boolean chunked) {
+    this.apro = apro;
+    this.queue = queue;
+    this.pool = pool;
+    this.threads = threads;
+    this.useNuma = useNuma;
+    this.chunked = chunked;
+  }
+
+  /** Runs the task on the borrowed threads and on the calling thread, returns once it is done everywhere.
+   * The wait for the cores of the layout and of the iterations is given up when the run is cancelled
+   * @return false if the task was not run, cancelled while waiting for the cores
+   * @throws RuntimeException the first exception thrown by one of the threads, or an Error as is */
+  boolean execute(Task task) {
+    if (pool == null) {
+      inline(task);
+      return true;
+    }
+    this.task = task;
+    if (task == Task.ASYNC_ITERATIONS) {
+      sweeps = new AtomicIntegerArray(threads);
+      swept = 0;
+    }
+    boolean cancellable = task != Task.UPDATE;
+    failure = null;
+    do {
+      final int granted = pool.acquire(threads, cancellable, apro.getCancellationToken());
+      if (granted == 0) {
+        apro.cancel();
+        return false;
+      }
+      try {
+        active = granted;
+        rebalance = false;
+        halted = false;
+        queue.setSteal(chunked || granted < threads);
+        queue.reset();
+        phaser = new Phaser(granted) {
+          @Override
+          protected boolean onAdvance(int phase, int parties) {
+            queue.reset();
+            if (!ending) return false;
+            ending = false;
+            boolean more = apro.iterated();
+            if (more && pool.unbalanced(granted, threads)) {
+              rebalance = true;
+              more = false;
+            }
+            return !more;
+          }
+        };
+        CountDownLatch exits = new CountDownLatch(granted-1);
+        for (int t=1; t<granted; t++) {
+          pool.execute(new GroupWorker(this, t, useNuma ? apro.getNumaNode(queue.first(t)) : null, exits));
+        }
+        try {
+          work(0);
+        }
+        catch (Throwable e) {
+          fail(e);
+        }
+        // the borrowed threads may still be running when the barriers were given up
+        if (failure != null) awaitUninterruptibly(exits);
+      }
+      finally {
+        pool.release(granted);
+      }
+    } while (rebalance && failure == null);
+    
+    Throwable e = failure;
+    if (e != null) {
+      failure = null;
+      if (e instanceof RuntimeException) throw (RuntimeException) e;
+      if (e instanceof Error) throw (Error) e;
+      throw new RuntimeException(e);
+    }
+    return true;
+  }
+  
+  /** Records the first exception of the current task and releases the other threads from the barriers of the round,
+   *  called by the thread that threw it */
+  void fail(Throwable e) {
+    synchronized (this) {
+      if (failure == null) failure = e;
+    }
+    halted = true;
+    phaser.forceTermination();
+  }
+
+  /** Runs the task on the calling thread, over all the groups */
+  private void inline(Task task) {
+    List<Group> groups = queue.home(0);
+    if (task == Task.LAYOUT) {
+      if (apro.isScattered()) {
+        apro.count(0, 1);
+        apro.allocate(groups);
+        apro.scatter(0, 1);
+      }
+      apro.load(groups);
+      if (apro.isPruned()) apro.prune(groups);
+      apro.transpose(groups);
+    }
+    else if (task == Task.UPDATE) {
+      apro.update(groups);
+    }
+    else if (task == Task.ITERATIONS) {
+      do {
+        for (Group group: groups) group.computeResponsibilities();
+        for (Group group: groups) group.computeAvailabilities();
+      } while (apro.iterated());
+    }
+  }
+
+  /** Does the share of the worker in the current task */
+  void work(int id) {
+    Phaser barrier = phaser;
+    int step = active;
+
+    if (task == Task.LAYOUT) {
+      if (apro.isScattered()) {
+        // each home range has its slice of the hash table of the matrix, and its rows to allocate
+        for (int t=id; t<threads; t+=step) apro.count(t, threads);
+        barrier.arriveAndAwaitAdvance();
+        if (barrier.isTerminated()) return;
+        for (int t=id; t<threads; t+=step) apro.allocate(queue.home(t));
+        barrier.arriveAndAwaitAdvance();
+        if (barrier.isTerminated()) return;
+        for (int t=id; t<threads; t+=step) apro.scatter(t, threads);
+        barrier.arriveAndAwaitAdvance();
+        if (barrier.isTerminated()) return;
+      }
+      for (int t=id; t<threads; t+=step) apro.load(queue.home(t));
+      barrier.arriveAndAwaitAdvance();
+      if (barrier.isTerminated()) return;
+      if (apro.isPruned()) {
+        // the bounds of all the columns are known once all the rows are loaded
+        for (int t=id; t<threads; t+=step) apro.prune(queue.home(t));
+        barrier.arriveAndAwaitAdvance();
+        if (barrier.isTerminated()) return;
+      }
+      for (int t=id; t<threads; t+=step) apro.transpose(queue.home(t));
+    }
+    else if (task == Task.UPDATE) {
+      for (int t=id; t<threads; t+=step) apro.update(queue.home(t));
+    }
+    else if (task == Task.ITERATIONS) {
+      do {
+        Group group;
+        while (!apro.cancelling() && (group = queue.next(id)) != null) group.computeResponsibilities();
+        barrier.arriveAndAwaitAdvance();
+        if (barrier.isTerminated()) return;
+        while (!apro.cancelling() && (group = queue.next(id)) != null) group.computeAvailabilities();
+        ending = true;
+        barrier.arriveAndAwaitAdvance();
+      } while (!barrier.isTerminated());
+      return;
+    }
+    else if (task == Task.ASYNC_ITERATIONS) {
+      int limit = apro.getMaxIterations();
+      boolean busy = true;
+      while (busy && !halted && !apro.cancelling()) {
+        busy = false;
+        for (int t=id; t<threads && !halted; t+=step) {
+          if (sweeps.get(t) >= limit) continue;
+          for (Group group: queue.home(t)) {
+            if (apro.cancelling()) break;
+            group.sweep();
+          }
+          sweeps.incrementAndGet(t);
+          busy = true;
+        }
+        advance();
+      }
+    }
+
+    barrier.arriveAndAwaitAdvance();
+  }
+  
+  /** Reports the iterations completed by all the home ranges of an asynchronous run to the engine, 
+   *  and halts the sweeps when the engine stops them or when the cores should be reserved again */
+  private void advance() {
+    int done = Integer.MAX_VALUE;
+    for (int t=0; t<threads; t++) done = Math.min(done, sweeps.get(t));
+    if (done > swept) {
+      synchronized (this) {
+        while (swept < done && !halted) {
+          swept++;
+          if (!apro.iterated()) halted = true;
+        }
+      }
+    }
+    if (!halted && pool.unbalanced(active, threads)) {
+      rebalance = true;
+      halted = true;
+    }
+  }
+  
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+}
@@ -0,0 +1,144 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import fr.lri.tao.apro.data.DSVProvider;
+import fr.lri.tao.apro.data.DataProvider;
+import fr.lri.tao.apro.data.MATLABProvider;
+import fr.lri.tao.apro.data.points.PointsProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Runs the double and the single precision engines on the same input, and reports how far the exemplars drift apart */
+public class PrecisionComparison {
+
+  private final AproBuilder builder;
+  private final DataProvider provider;
+  private final int iters;
+  
+  private int[] doubleExemplars;
+  private int[] floatExemplars;
+  private long doubleTime;
+  private long floatTime;
+  private int doubleIterations;
+  private int floatIterations;
+  private double doubleNetSimilarity;
+  private double floatNetSimilarity;
+  
+  /**
+   * @param builder Builder with the parameters for both runs. Its precision is overwritten
+   * @param provider Input data
+   * @param iters Number of iterations for both runs
+   */
+  public PrecisionComparison(AproBuilder builder, DataProvider provider, int iters) {
+    this.builder = builder;
+    this.provider = provider;
+    this.iters = iters;
+  }
+  
+  public void run() {
+    Apro apro = builder.setPrecision(Apro.Precision.DOUBLE).build(provider);
+    apro.run(iters);
+    doubleExemplars = apro.getExemplars();
+    doubleTime = apro.getRunTime();
+    doubleIterations = apro.getIterations();
+    doubleNetSimilarity = netSimilarity(apro.getS(), doubleExemplars);
+    
+    apro = builder.setPrecision(Apro.Precision.FLOAT).build(provider);
+    apro.run(iters);
+    floatExemplars = apro.getExemplars();
+    floatTime = apro.getRunTime();
+    floatIterations = apro.getIterations();
+    floatNetSimilarity = netSimilarity(apro.getS(), floatExemplars);
+  }
+  
+  /** Sum of similarities of all the nodes to their exemplars, preferences included */
+  private static double netSimilarity(DoubleMatrix2D s, int[] exemplars) {
+    double sum = 0;
+    for (int i = 0; i < exemplars.length; i++) {
+      if (exemplars[i] >= 0) sum += s.getQuick(i, exemplars[i]);
+    }
+    return sum;
+  }
+  
+  private static Set<Integer> toSet(int[] exemplars) {
+    Set<Integer> exes = new HashSet<Integer>();
+    for (int e: exemplars) exes.add(e);
+    return exes;
+  }
+  
+  /** @return Number of nodes assigned to a different exemplar by the two engines */
+  public int getDifferentAssignments() {
+    int c = 0;
+    for (int i = 0; i < doubleExemplars.length; i++) {
+      if (doubleExemplars[i] != floatExemplars[i]) c++;
+    }
+    return c;
+  }
+  
+  /** @return Number of exemplars found by both engines */
+  public int getCommonExemplars() {
+    Set<Integer> common = toSet(doubleExemplars);
+    common.retainAll(toSet(floatExemplars));
+    return common.size();
+  }
+  
+  public int[] getDoubleExemplars() {
+    return doubleExemplars;
+  }
+  
+  public int[] getFloatExemplars() {
+    return floatExemplars;
+  }
+  
+  /** @return Relative difference of the net similarity of the float result to the double one */
+  public double getNetSimilarityDrift() {
+    if (doubleNetSimilarity == 0) return 0;
+    return (floatNetSimilarity - doubleNetSimilarity) / Math.abs(doubleNetSimilarity);
+  }
+  
+  @Override
+  public String toString() {
+    int n = doubleExemplars.length;
+    StringBuilder sb = new StringBuilder();
+    sb.append("Exemplars: double ").append(toSet(doubleExemplars).size());
+    sb.append(", float ").append(toSet(floatExemplars).size());
+    sb.append(", common ").append(getCommonExemplars()).append("\n");
+    sb.append("Different assignments: ").append(getDifferentAssignments()).append(" of ").append(n);
+    sb.append(String.format(" (%.3f%%)", 100d * getDifferentAssignments() / n)).append("\n");
+    sb.append(String.format("Net similarity: double %g, float %g (drift %.2e)", doubleNetSimilarity, floatNetSimilarity, getNetSimilarityDrift())).append("\n");
+    sb.append("Iterations: double ").append(doubleIterations).append(", float ").append(floatIterations).append("\n");
+    sb.append("Time: double ").append(doubleTime).append(" ms, float ").append(floatTime).append(" ms");
+    return sb.toString();
+  }
+  
+  /** Compares the engines on a file, with damping 0.9 and stopping after 100 iterations without a change. Usage:
+   *  mat [file] [matrix name] [preference name] [iters] |
+   *  dsv [preferences file] [similarities file] [iters] |
+   *  points [file] [iters] */
+  public static void main(String[] args) throws IOException {
+    DataProvider provider;
+    int iters;
+    if (args.length == 5 && args[0].equals("mat")) {
+      provider = new MATLABProvider(new File(args[1]), args[2], args[3]);
+      iters = Integer.parseInt(args[4]);
+    }
+    else if (args.length == 4 && args[0].equals("dsv")) {
+      provider = new DSVProvider(new File(args[1]), new File(args[2]));
+      iters = Integer.parseInt(args[3]);
+    }
+    else if (args.length == 3 && args[0].equals("points")) {
+      provider = new PointsProvider(new File(args[1]));
+      iters = Integer.parseInt(args[2]);
+    }
+    else {
+      System.out.println("Usage: PrecisionComparison mat [file] [matrix] [preference] [iters] | dsv [preferences] [similarities] [iters] | points [file] [iters]");
+      return;
+    }
+    
+    PrecisionComparison comparison = new PrecisionComparison(new AproBuilder().setDebug(false).setDamping(0.9).setConvergence(100), provider, iters);
+    comparison.run();
+    System.out.println(comparison);
+  }
+}
@@ -0,0 +1,435 @@
+package fr.lri.tao.apro.ap;
+
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
+import cern.colt.map.OpenIntDoubleHashMap;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.AbstractMatrix;
+import cern.colt.matrix.impl.SparseDoubleMatrix2D;
+import fr.lri.tao.apro.util.Logger;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/** Group holding its part of the sparsity pattern in row-major (CSR) form, and the pattern 
+ *  of the columns it owns in column-major (CSC) form. The values are stored by the subclasses, in the precision of the engine */
+abstract class SparseGroup extends Group {
+
+  int[] lengths;
+  int[] t;
+  int[][] indices;
+  
+  /** Position of the diagonal element in each row, -1 if the row has no diagonal */
+  int[] diag;
+  
+  /** Position of each row element inside the column arrays of its column owner */
+  int[][] tpos;
+  
+  /* Column-major (CSC) transpose of the columns [startIndex, endIndex) owned by this group */
+  int[] colLengths;
+  int[] colT;
+  /** Row index of each element of an owned column */
+  int[][] colIndices;
+  /** Position of each column element inside its row arrays */
+  int[][] colPos;
+  /** Position of the diagonal element in each owned column, -1 if the column has no diagonal */
+  int[] colDiag;
+  
+  /** Rows and columns updated since the start of the run, out of size per iteration */
+  long updatedRows, updatedColumns;
+  
+  
+  SparseGroup(Apro apro, int gid) {
+    super(apro, gid);
+    lengths = new int[size];
+    t = new int[size];
+    indices = new int[size][];
+    diag = new int[size];
+    
+    tpos = new int[size][];
+    
+    colLengths = new int[size];
+    colT = new int[size];
+    colIndices = new int[size][];
+    colPos = new int[size][];
+    colDiag = new int[size];
+  }
+  
+  /** Allocates the pattern and the value arrays of the rows, once the row lengths are counted */
+  void allocateRows() {
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      indices[i] = new int[len];      
+      tpos[i] = new int[len];
+      diag[i] = -1;
+    }
+  }
+  
+  /** Allocates the pattern and the value arrays of the owned columns, once the column lengths are counted */
+  void allocateColumns() {
+    for (int kk=0; kk<size; kk++) {
+      int len = colLengths[kk];
+      colIndices[kk] = new int[len];
+      colPos[kk] = new int[len];
+      colDiag[kk] = -1;
+    }
+  }
+  
+  abstract void setS(int i, int j, double v);
+  
+  /** Keeps the values of the given elements of row i, in the same order, when the row is pruned
+   * @param kept Positions of the elements kept, the first count ones */
+  abstract void retain(int i, int[] kept, int count);
+  
+  /** Lower bound of the availabilities of each column owned by this group, valid over all the iterations:
+   *  a(i,k) &gt;= min(0, r(k,k)) and r(k,k) &gt;= min(0, s(k,k) - max over k' != k of s(k,k')), as a(k,k') &lt;= 0.
+   *  The column of a node without a diagonal element keeps r(k,k) = 0
+   * @param bounds Bound of all the nodes, filled in for the columns of this group */
+  void bounds(double[] bounds) {
+    for (int i=0; i<size; i++) {
+      int d = diag[i];
+      if (d < 0) {
+        bounds[i+startIndex] = 0;
+        continue;
+      }
+      double max = Double.NEGATIVE_INFINITY;
+      for (int j=0; j<lengths[i]; j++) {
+        if (j != d) max = Math.max(max, getS(i, j));
+      }
+      bounds[i+startIndex] = Math.min(0, getS(i, d) - max);
+    }
+  }
+  
+  /** Removes the elements (i,k) that can never be exemplar links, once the rows of all the groups are loaded.
+   *  a(i,k') + s(i,k') is at least s(i,k') plus the bound of column k', or plus 0 on the diagonal, and a(i,k) &lt;= 0 off the diagonal. 
+   *  When s(i,k) is below the second largest of these lower bounds over the other elements of the row, 
+   *  a(i,k) + s(i,k) is never one of the two largest of the row, and r(i,k) stays negative: the element changes neither 
+   *  the responsibilities of its row nor the sum of its column, and the messages of the other elements are exactly 
+   *  those of the full layout. The diagonal is always kept
+   * @param bounds Lower bounds of the availabilities of all the columns, see bounds()
+   * @return Number of elements removed */
+  long prune(double[] bounds) {
+    long pruned = 0;
+    for (int i=0; i<size; i++) {
+      int len = lengths[i];
+      if (len < 3) continue;
+      int[] row = indices[i];
+      int d = diag[i];
+      
+      // three largest lower bounds of a(i,k') + s(i,k'), with the positions of the first two
+      double b1 = Double.NEGATIVE_INFINITY, b2 = Double.NEGATIVE_INFINITY, b3 = Double.NEGATIVE_INFINITY;
+      int j1 = -1, j2 = -1;
+      for (int j=0; j<len; j++) {
+        double lb = getS(i, j) + (j == d ? 0 : bounds[row[j]]);
+        if (lb > b1) {
+          b3 = b2;
+          b2 = b1;
+          j2 = j1;
+          b1 = lb;
+          j1 = j;
+        }
+        else if (lb > b2) {
+          b3 = b2;
+          b2 = lb;
+          j2 = j;
+        }
+        else if (lb > b3) {
+          b3 = lb;
+        }
+      }
+      
+      int[] kept = new int[len];
+      int count = 0;
+      for (int j=0; j<len; j++) {
+        double threshold = j == j1 || j == j2 ? b3 : b2;
+        if (j == d || getS(i, j) >= threshold) kept[count++] = j;
+      }
+      if (count == len) continue;
+      
+      int[] pattern = new int[count];
+      for (int c=0; c<count; c++) {
+        pattern[c] = row[kept[c]];
+        if (kept[c] == d) diag[i] = c;
+      }
+      retain(i, kept, count);
+      indices[i] = pattern;
+      tpos[i] = new int[count];
+      lengths[i] = count;
+      pruned += len - count;
+    }
+    return pruned;
+  }
+  
+  /** Extracts the rows of consecutive groups from a similarity matrix without a hash table, reading the rows 
+   *  of these groups only. The column indices of each row are sorted
+   * @param home Consecutive groups, loaded by the same worker */
+  static void load(DoubleMatrix2D matrix, List<Group> home) {
+    for (Group g: home) {
+      SparseGroup group = (SparseGroup) g;
+      for (int i=0; i<group.size; i++) {
+        for (int k=0; k<group.n; k++) {
+          if (matrix.getQuick(i+group.startIndex, k) != 0) group.lengths[i]++;
+        }
+      }
+      group.allocateRows();
+      for (int i=0; i<group.size; i++) {
+        int node = i+group.startIndex;
+        for (int k=0; k<group.n; k++) {
+          double v = matrix.getQuick(node, k);
+          if (v == 0) continue;
+          int j = group.t[i]++;
+          group.indices[i][j] = k;
+          group.setS(i, j, v);
+          if (k == node) group.diag[i] = j;
+        }
+      }
+    }
+  }
+  
+  /** Sorts the elements of each row of consecutive groups by column, with their similarities, 
+   *  and finds the diagonal, once the rows are scattered by a Loader
+   * @param home Consecutive groups, sorted by the same worker */
+  static void sort(List<Group> home) {
+    long[] keys = new long[0];
+    double[] values = new double[0];
+    for (Group g: home) {
+      SparseGroup group = (SparseGroup) g;
+      for (int i=0; i<group.size; i++) {
+        int[] row = group.indices[i];
+        int len = row.length;
+        boolean sorted = true;
+        for (int j=1; j<len && sorted; j++) sorted = row[j-1] < row[j];
+        if (!sorted) {
+          if (keys.length < len) {
+            keys = new long[len];
+            values = new double[len];
+          }
+          // column in the high bits, position in the low bits: the values follow their column
+          for (int j=0; j<len; j++) {
+            keys[j] = (long) row[j] << 32 | j;
+            values[j] = group.getS(i, j);
+          }
+          Arrays.sort(keys, 0, len);
+          for (int j=0; j<len; j++) {
+            row[j] = (int) (keys[j] >>> 32);
+            group.setS(i, j, values[(int) keys[j]]);
+          }
+        }
+        int d = Arrays.binarySearch(row, i+group.startIndex);
+        if (d >= 0) group.diag[i] = d;
+      }
+    }
+  }
+  
+  /** Parallel load of a sparse matrix straight from the slots of its hash table. The slots are split 
+   *  into as many slices as there are home ranges, and the worker of each home range scans its slice only:
+   *  a first scan counts the elements of each row, the rows are allocated by the workers of their groups, 
+   *  then a second scan scatters the elements with their values into the rows. Each element is read twice 
+   *  over all the workers, instead of twice by each of them. The positions in the rows depend on the order 
+   *  of the workers, sort() puts them back in the order of the columns.
+   *  <p>
+   *  The table of a plain SparseDoubleMatrix2D is read in place; for a view or another kind of map, 
+   *  the elements are first copied into arrays by the calling thread */
+  static final class Loader {
+    
+    /** Key row * columns + column of each slot, its value, and whether it holds an element (null if all do) */
+    private int[] keys;
+    private double[] values;
+    private byte[] state;
+    private int capacity;
+    private final int columns;
+    /** Group of each row */
+    private final SparseGroup[] owners;
+    /** Elements of each row, counted by all the workers, then taken back by the scatter */
+    private final AtomicIntegerArray counts;
+    
+    /** State of a slot holding an element, see OpenIntDoubleHashMap */
+    private static final byte FULL = 1;
+    
+    
+    Loader(SparseDoubleMatrix2D matrix, List<Group> groups) {
+      columns = matrix.columns();
+      counts = new AtomicIntegerArray(matrix.rows());
+      owners = new SparseGroup[matrix.rows()];
+      for (Group group: groups) Arrays.fill(owners, group.startIndex, group.endIndex, (SparseGroup) group);
+      if (!table(matrix)) copy(matrix);
+    }
+    
+    /** Reads the hash table of a plain matrix in place
+     * @return false if the matrix is a view, or its storage is not the expected one */
+    private boolean table(SparseDoubleMatrix2D matrix) {
+      if (matrix.getClass() != SparseDoubleMatrix2D.class) return false;
+      try {
+        if (!field(AbstractMatrix.class, "isNoView").getBoolean(matrix)) return false;
+        Object map = field(SparseDoubleMatrix2D.class, "elements").get(matrix);
+        if (map.getClass() != OpenIntDoubleHashMap.class) return false;
+        keys = (int[]) field(OpenIntDoubleHashMap.class, "table").get(map);
+        values = (double[]) field(OpenIntDoubleHashMap.class, "values").get(map);
+        state = (byte[]) field(OpenIntDoubleHashMap.class, "state").get(map);
+        capacity = state.length;
+        return true;
+      }
+      catch (ReflectiveOperationException | RuntimeException e) {
+        Logger.warn("[Init] Cannot read the hash table of the matrix, copying its elements: %s", e);
+        return false;
+      }
+    }
+    
+    private static Field field(Class<?> owner, String name) throws NoSuchFieldException {
+      Field field = owner.getDeclaredField(name);
+      field.setAccessible(true);
+      return field;
+    }
+    
+    /** Copies the elements of the matrix into arrays, in one pass */
+    private void copy(SparseDoubleMatrix2D matrix) {
+      IntArrayList rows = new IntArrayList();
+      IntArrayList cols = new IntArrayList();
+      DoubleArrayList vals = new DoubleArrayList();
+      matrix.getNonZeros(rows, cols, vals);
+      capacity = rows.size();
+      keys = new int[capacity];
+      for (int e=0; e<capacity; e++) keys[e] = rows.getQuick(e) * columns + cols.getQuick(e);
+      vals.trimToSize();
+      values = vals.elements();
+      state = null;
+    }
+    
+    /** Counts the elements of each row in one slice of the slots */
+    void count(int slice, int slices) {
+      int from = (int) ((long) capacity * slice / slices);
+      int to = (int) ((long) capacity * (slice+1) / slices);
+      for (int e=from; e<to; e++) {
+        if ((state == null || state[e] == FULL) && values[e] != 0) counts.incrementAndGet(keys[e] / columns);
+      }
+    }
+    
+    /** Allocates the rows of consecutive groups, once all the slices are counted */
+    void allocate(List<Group> home) {
+      for (Group g: home) {
+        SparseGroup group = (SparseGroup) g;
+        for (int i=0; i<group.size; i++) group.lengths[i] = counts.get(i+group.startIndex);
+        group.allocateRows();
+      }
+    }
+    
+    /** Scatters the elements of one slice of the slots into their rows, once all the rows are allocated */
+    void scatter(int slice, int slices) {
+      int from = (int) ((long) capacity * slice / slices);
+      int to = (int) ((long) capacity * (slice+1) / slices);
+      for (int e=from; e<to; e++) {
+        double v = values[e];
+        if ((state != null && state[e] != FULL) || v == 0) continue;
+        int i = keys[e] / columns;
+        int k = keys[e] % columns;
+        SparseGroup group = owners[i];
+        int ii = i-group.startIndex;
+        int j = counts.decrementAndGet(i);
+        group.indices[ii][j] = k;
+        group.setS(ii, j, v);
+      }
+    }
+  }
+  
+  /** Builds the column-major pattern of the columns owned by consecutive groups, from the rows of all the groups,
+   *  once all of them are loaded. The rows are sorted, so the elements of the owned columns are one run in each row
+   * @param home Consecutive groups, transposed by the same worker */
+  static void transpose(List<Group> groups, List<Group> home) {
+    int start = home.get(0).startIndex;
+    int end = home.get(home.size()-1).endIndex;
+    SparseGroup[] owners = owners(home);
+    
+    for (Group g: groups) {
+      SparseGroup group = (SparseGroup) g;
+      for (int i=0; i<group.size; i++) {
+        int[] row = group.indices[i];
+        int to = search(row, end);
+        for (int j=search(row, start); j<to; j++) {
+          int k = row[j];
+          SparseGroup owner = owners[k-start];
+          owner.colLengths[k-owner.startIndex]++;
+        }
+      }
+    }
+    for (Group group: home) ((SparseGroup) group).allocateColumns();
+    
+    for (Group g: groups) {
+      SparseGroup group = (SparseGroup) g;
+      for (int i=0; i<group.size; i++) {
+        int[] row = group.indices[i];
+        int to = search(row, end);
+        for (int j=search(row, start); j<to; j++) {
+          int k = row[j];
+          SparseGroup owner = owners[k-start];
+          int kk = k-owner.startIndex;
+          int p = owner.colT[kk]++;
+          owner.colIndices[kk][p] = i+group.startIndex;
+          owner.colPos[kk][p] = j;
+          if (j == group.diag[i]) owner.colDiag[kk] = p;
+          group.tpos[i][j] = p;
+        }
+      }
+    }
+  }
+  
+  /** @return Group of each node of consecutive groups, indexed from the start of the first one */
+  private static SparseGroup[] owners(List<Group> home) {
+    int start = home.get(0).startIndex;
+    SparseGroup[] owners = new SparseGroup[home.get(home.size()-1).endIndex - start];
+    for (Group group: home) {
+      Arrays.fill(owners, group.startIndex-start, group.endIndex-start, (SparseGroup) group);
+    }
+    return owners;
+  }
+  
+  /** @return Position of the first column index in the sorted row that is not less than k */
+  private static int search(int[] row, int k) {
+    int pos = Arrays.binarySearch(row, k);
+    return pos < 0 ? -pos-1 : pos;
+  }
+  
+  @Override
+  long update(DoubleMatrix2D matrix) {
+    long nonZeros = 0;
+    for (int i=0; i<size; i++) {
+      int[] row = indices[i];
+      for (int j=0; j<row.length; j++) {
+        double v = matrix.getQuick(i+startIndex, row[j]);
+        setS(i, j, v);
+        if (v != 0) nonZeros++;
+      }
+    }
+    return nonZeros;
+  }
+  
+  @Override
+  int updatePreferences(double[] preferences) {
+    int missing = 0;
+    for (int i=0; i<size; i++) {
+      if (diag[i] >= 0) setS(i, diag[i], preferences[i+startIndex]);
+      else missing++;
+    }
+    return missing;
+  }
+  
+  @Override
+  long elements() {
+    long elements = 0;
+    for (int i=0; i<size; i++) {
+      elements += lengths[i] + colLengths[i];
+    }
+    return elements;
+  }
+  
+  @Override
+  int length(int i) {
+    return lengths[i];
+  }
+  
+  @Override
+  int column(int i, int j) {
+    return indices[i][j];
+  }
+  
+}
@@ -1,6 +1,7 @@
 package fr.lri.tao.apro.data;
 
 import cern.colt.matrix.DoubleMatrix2D;
+import fr.lri.tao.apro.util.Utils;
 
 /** Interface to be implemented by all SparseDataProvider implementation classes - classes that provide similarity matrix from different formats */
 public interface DataProvider {
@@ -14,4 +15,12 @@ public interface DataProvider {
   
   /** Add noise to the similarity matrix */
   public void addNoise();
+  
+  /** Add noise to the similarity matrix, the same noise for the same seed, for reproducible results.
+   * By default the noise is added to the matrix returned by getMatrix(), to be overridden by the providers
+   * that return a new matrix on each call
+   * @param seed Seed of the noise */
+  default void addNoise(long seed) {
+    Utils.addNoise(getMatrix(), seed);
+  }
 }
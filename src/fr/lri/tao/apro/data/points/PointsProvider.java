@@ -98,5 +98,10 @@ public class PointsProvider implements DataProvider {
   public void addNoise() {
     Utils.addNoise(s);
   }
+  
+  @Override
+  public void addNoise(long seed) {
+    Utils.addNoise(s, seed);
+  }
 
 }
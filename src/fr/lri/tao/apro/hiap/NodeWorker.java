@@ -47,7 +47,8 @@ public class NodeWorker extends Thread {
     while (points != null) {
       SimilarityMeasure measure = hiap.getProvider().getSimilarityMeasure();
       PointsProvider partProvider = new PointsProvider(points, measure);
-      Apro apro = new Apro(partProvider, coresPerNode, false); // False, because it's already pinned on the current node
+      // The threads borrowed from the compute pool are pinned to the node of this worker: all of them fit on the start node
+      Apro apro = node == null || !NUMA.isAvailable() ? new Apro(partProvider, coresPerNode, false) : new Apro(partProvider, coresPerNode, NUMA.getNumNodes(), coresPerNode, node);
       apro.setDebug(false);
       apro.setDamping(hiap.getDamping());
       apro.run(iters);
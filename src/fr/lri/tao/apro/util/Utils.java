@@ -1,10 +1,10 @@
 package fr.lri.tao.apro.util;
 
-import cern.colt.list.DoubleArrayList;
-import cern.colt.list.IntArrayList;
+import cern.colt.function.IntIntDoubleFunction;
 import cern.colt.matrix.DoubleMatrix2D;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Random;
 
 
 public class Utils {
@@ -45,26 +45,49 @@ public class Utils {
   }
   
   public static void addNoise(double[][] s) {
+    addNoise(s, new Random().nextLong());
+  }
+  
+  /** Adds a tiny noise to the similarities to break the ties, the same for the same seed
+   * @param s Similarity matrix
+   * @param seed Seed of the noise */
+  public static void addNoise(double[][] s, long seed) {
     for (int i=0; i<s.length; i++) {
       for (int j=0; j<s[i].length; j++) {
-        s[i][j] = s[i][j] + (EPSILON * s[i][j] + REALMIN100) * Math.random();
+        s[i][j] = noise(s[i][j], seed, i, j);
       }
     }
   }
   
   public static void addNoise(DoubleMatrix2D s) {
-    IntArrayList is = new IntArrayList();
-    IntArrayList ks = new IntArrayList();
-    DoubleArrayList vs = new DoubleArrayList();            
-    s.getNonZeros(is, ks, vs);
-    
-    for (int j=0; j<is.size(); j++) {
-      int i = is.get(j);
-      int k = ks.get(j);
-      double v = vs.get(j);
-      v = v + (EPSILON * v + REALMIN100) * Math.random();
-      s.setQuick(i, k, v);
-    }    
+    addNoise(s, new Random().nextLong());
+  }
+  
+  /** Adds a tiny noise to the non-zero similarities to break the ties, the same for the same seed 
+   * whatever the order in which the matrix stores its elements
+   * @param s Similarity matrix
+   * @param seed Seed of the noise */
+  public static void addNoise(DoubleMatrix2D s, final long seed) {
+    s.forEachNonZero(new IntIntDoubleFunction() {
+      @Override
+      public double apply(int i, int k, double v) {
+        return noise(v, seed, i, k);
+      }
+    });
+  }
+  
+  /** @return Similarity v of the element (i, k) with the noise of the given seed, as added by addNoise() */
+  public static double noise(double v, long seed, int i, int k) {
+    return v + (EPSILON * v + REALMIN100) * uniform(seed, i, k);
+  }
+  
+  /** @return Number in [0, 1) depending only on the seed and the position of the element (SplitMix64 finalizer) */
+  private static double uniform(long seed, long i, long k) {
+    long z = seed + i * 0x9E3779B97F4A7C15L + k * 0xC2B2AE3D27D4EB4FL;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    return (z >>> 11) * 0x1.0p-53;
   }
   
 }
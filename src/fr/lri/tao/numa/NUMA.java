@@ -59,6 +59,11 @@ public class NUMA {
     return res;
   }
   
+  /** Lets the current thread run on all the nodes again, after runOnNode */
+  public static int runOnAllNodes() {
+    return NUMALibrary.INSTANCE.numa_run_on_node(-1);
+  }
+  
   /** @return Current CPU */
   public static int getCore() {
     return CLibrary.INSTANCE.sched_getcpu();